@@ -1,12 +1,46 @@
 package com.tictactoe;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class Utils {
     public static final int SERVER_PORT = 1234;
     public static final String SERVER_HOST = "localhost";
+    // game ids carry the id of the node that owns them above this bit, so a cluster
+    // gateway can route by id without shared state. 0 for a server on its own
+    public static final int NODE_ID_SHIFT = 48;
+    // player names are at most this many bytes of UTF-8, the write-ahead log keeps
+    // them in records of a fixed size
+    public static final int MAX_NAME_BYTES = 32;
+
+    // clients send a PING this often so the server knows they are alive
+    public static final int HEARTBEAT_INTERVAL_MS = 15000;
+    // clients give up on a silent server after this long
+    public static final int CLIENT_READ_TIMEOUT_MS = 45000;
+    // a client that lost the connection tries again after a random delay of at least
+    // half the backoff, which doubles from the first to the last value. it stops once a
+    // drained server had the time to finish its drain and start again, its games are
+    // lost by then anyway
+    public static final int RECONNECT_INITIAL_BACKOFF_MS = 250;
+    public static final int RECONNECT_MAX_BACKOFF_MS = 8000;
+    // default of drain.timeoutMs, how long a draining server lets its games finish
+    public static final int DRAIN_TIMEOUT_MS = 60000;
+    // what a drained server is given to come back after its drain
+    public static final int SERVER_RESTART_MS = 60000;
+    public static final int RECONNECT_GIVE_UP_MS = DRAIN_TIMEOUT_MS + SERVER_RESTART_MS;
+    // messages a client holds for its message handler. when the handler falls behind,
+    // board updates are folded into one RESYNC and other messages are dropped
+    public static final int CLIENT_EVENT_RING_SIZE = 256;
 
     // game
     public static final int BOARD_SIZE_3X3 = 3;
@@ -17,16 +51,80 @@ public class Utils {
     public static final char SYMBOL_O = 'O';
     public static final char SYMBOL_EMPTY = ' ';
 
-    // message types for client server communication
+    // message types for client server communication, each with the fields it can carry.
+    // a client may number its requests with REQUEST_ID, the direct reply carries the same id
     public enum MessageType {
-        LOGIN,           // client logs in with name and board size
-        WAIT,            // server tells client to wait for opponent
-        GAME_START,      // server notifies clients that game has started
-        MOVE,            // client makes a move
-        MOVE_RESULT,     // server sends result of a move
-        GAME_OVER,       // server notifies game is over
-        ERROR,           // error message
-        QUIT             // client quits the game
+        // client logs in with name and board size
+        LOGIN(Field.PLAYER_NAME, Field.BOARD_SIZE, Field.MATCH_ID, Field.REQUEST_ID),
+        // server tells client to wait for opponent
+        WAIT(Field.BOARD_SIZE, Field.PLAYERS_MISSING, Field.REQUEST_ID),
+        // server notifies clients that game has started
+        GAME_START(Field.GAME_ID, Field.BOARD_SIZE, Field.PLAYER_SYMBOL, Field.OPPONENT_NAME, Field.OPPONENT_SYMBOL,
+                Field.IS_YOUR_TURN, Field.TURN_TIMEOUT, Field.RESUME_TOKEN),
+        // client makes a move
+        MOVE(Field.GAME_ID, Field.ROW, Field.COL, Field.REQUEST_ID),
+        // server sends result of a move, MOVE_SEQ numbers the moves of a game from 1.
+        // only the copy for the player that moved carries its REQUEST_ID
+        MOVE_RESULT(Field.GAME_ID, Field.ROW, Field.COL, Field.SYMBOL, Field.NEXT_TURN, Field.NEXT_SYMBOL,
+                Field.MOVE_SEQ, Field.REQUEST_ID),
+        // server notifies game is over
+        GAME_OVER(Field.GAME_ID, Field.RESULT, Field.WINNER, Field.GAME_DURATION, Field.REASON),
+        // error message
+        ERROR(Field.MESSAGE, Field.GAME_ID, Field.REQUEST_ID),
+        // client quits the game
+        QUIT(Field.GAME_ID, Field.REQUEST_ID),
+        // client re-attaches to a game after losing its connection
+        RESUME(Field.RESUME_TOKEN, Field.REQUEST_ID),
+        // server sends the full state of a game
+        RESYNC(Field.GAME_ID, Field.BOARD_SIZE, Field.BOARD, Field.MOVE_SEQ, Field.NEXT_TURN, Field.PLAYER_SYMBOL,
+                Field.OPPONENT_NAME, Field.OPPONENT_SYMBOL, Field.IS_YOUR_TURN, Field.PLAYER_X, Field.PLAYER_O,
+                Field.REQUEST_ID),
+        // client watches a game, the server answers with WATCH and then only sends frames
+        WATCH(Field.GAME_ID, Field.REQUEST_ID),
+        // heartbeat, the other side answers with PONG
+        PING(Field.REQUEST_ID),
+        // answer to a heartbeat
+        PONG(Field.REQUEST_ID),
+        // server is full and closes the connection, the client may retry later
+        BUSY(Field.RETRY_AFTER, Field.MESSAGE),
+        // client registers for the next tournament with name and board size
+        TOURNAMENT(Field.PLAYER_NAME, Field.BOARD_SIZE, Field.REQUEST_ID),
+        // server sends the tournament table after every round
+        STANDINGS(Field.TOURNAMENT_ID, Field.ROUND, Field.ROUNDS, Field.FINAL, Field.STANDINGS_NAMES,
+                Field.STANDINGS_POINTS, Field.RANK, Field.POINTS),
+        // client missed a MOVE_RESULT and asks for the state of the game, the server answers with RESYNC
+        SYNC(Field.GAME_ID, Field.REQUEST_ID),
+        // client asks for the record of a player, the server answers with the counts
+        STATS(Field.PLAYER_NAME, Field.GAMES_PLAYED, Field.GAMES_WON, Field.GAMES_LOST, Field.GAMES_TIED,
+                Field.REQUEST_ID),
+        // client asks for the last games of a player, the server answers with one entry per game, newest first
+        HISTORY(Field.PLAYER_NAME, Field.HISTORY_OPPONENTS, Field.HISTORY_RESULTS, Field.HISTORY_BOARD_SIZES,
+                Field.REQUEST_ID);
+
+        private final Field[] fields;
+        // slot of every field in a message of this type, -1 if the type does not have it
+        private final byte[] slots;
+        private final boolean hasObjects;
+
+        MessageType(Field... fields) {
+            this.fields = fields;
+            this.slots = new byte[Field.values().length];
+            Arrays.fill(slots, (byte) -1);
+            boolean objects = false;
+            for (int i = 0; i < fields.length; i++) {
+                slots[fields[i].ordinal()] = (byte) i;
+                objects |= fields[i].type.isObject();
+            }
+            this.hasObjects = objects;
+        }
+
+        public Field[] getFields() {
+            return fields.clone();
+        }
+
+        public boolean hasField(Field field) {
+            return slots[field.ordinal()] >= 0;
+        }
     }
 
     // keys for message data
@@ -34,62 +132,424 @@ public class Utils {
         // login message keys
         public static final String PLAYER_NAME = "playerName";
         public static final String BOARD_SIZE = "boardSize";
+        public static final String MATCH_ID = "matchId";
 
         // game start message keys
         public static final String PLAYER_SYMBOL = "playerSymbol";
         public static final String OPPONENT_NAME = "opponentName";
         public static final String OPPONENT_SYMBOL = "opponentSymbol";
         public static final String IS_YOUR_TURN = "isYourTurn";
+        public static final String TURN_TIMEOUT = "turnTimeout";
+        // also names the game of MOVE, QUIT, MOVE_RESULT, GAME_OVER and ERROR,
+        // one connection may play many games
+        public static final String GAME_ID = "gameId";
+        public static final String RESUME_TOKEN = "resumeToken";
+
+        // resync message keys
+        public static final String BOARD = "board";
+        public static final String MOVE_SEQ = "moveSeq";
+
+        // spectator keys
+        public static final String PLAYER_X = "playerX";
+        public static final String PLAYER_O = "playerO";
 
         // move message keys
         public static final String ROW = "row";
         public static final String COL = "col";
         public static final String SYMBOL = "symbol";
         public static final String NEXT_TURN = "nextTurn";
+        // the symbol of the player to move, binary MOVE_RESULTs carry this instead of NEXT_TURN
+        public static final String NEXT_SYMBOL = "nextSymbol";
 
         // game over message keys
         public static final String RESULT = "result";
         public static final String WINNER = "winner";
         public static final String GAME_DURATION = "gameDuration";
+        public static final String REASON = "reason";
+
+        // tournament keys
+        public static final String TOURNAMENT_ID = "tournamentId";
+        public static final String ROUND = "round";
+        public static final String ROUNDS = "rounds";
+        public static final String FINAL = "final";
+        public static final String STANDINGS_NAMES = "standingsNames";
+        public static final String STANDINGS_POINTS = "standingsPoints";
+        public static final String RANK = "rank";
+        public static final String POINTS = "points";
+        public static final String PLAYERS_MISSING = "playersMissing";
 
         // error message key
         public static final String MESSAGE = "message";
+
+        // busy message key, milliseconds the client should wait before connecting again
+        public static final String RETRY_AFTER = "retryAfter";
+
+        // chosen by the client for a request, echoed in the reply
+        public static final String REQUEST_ID = "requestId";
+
+        // player statistics keys
+        public static final String GAMES_PLAYED = "gamesPlayed";
+        public static final String GAMES_WON = "gamesWon";
+        public static final String GAMES_LOST = "gamesLost";
+        public static final String GAMES_TIED = "gamesTied";
+
+        // history keys, one entry per game. results are win, loss or tie for the named player
+        public static final String HISTORY_OPPONENTS = "historyOpponents";
+        public static final String HISTORY_RESULTS = "historyResults";
+        public static final String HISTORY_BOARD_SIZES = "historyBoardSizes";
     }
 
-    // message class for client server communication
+    // how a field is stored in a message
+    public enum FieldType {
+        INT,
+        LONG,
+        BOOLEAN,
+        SYMBOL,     // X or O
+        STRING,
+        STRINGS,    // String[]
+        INTS;       // int[]
+
+        // kept as a reference, the others as a primitive
+        public boolean isObject() {
+            return this == STRING || this == STRINGS || this == INTS;
+        }
+    }
+
+    // the fields of all messages, with the key they had in the map based messages
+    public enum Field {
+        PLAYER_NAME(Keys.PLAYER_NAME, FieldType.STRING),
+        BOARD_SIZE(Keys.BOARD_SIZE, FieldType.INT),
+        MATCH_ID(Keys.MATCH_ID, FieldType.STRING),
+        PLAYER_SYMBOL(Keys.PLAYER_SYMBOL, FieldType.SYMBOL),
+        OPPONENT_NAME(Keys.OPPONENT_NAME, FieldType.STRING),
+        OPPONENT_SYMBOL(Keys.OPPONENT_SYMBOL, FieldType.SYMBOL),
+        IS_YOUR_TURN(Keys.IS_YOUR_TURN, FieldType.BOOLEAN),
+        TURN_TIMEOUT(Keys.TURN_TIMEOUT, FieldType.LONG),
+        GAME_ID(Keys.GAME_ID, FieldType.LONG),
+        RESUME_TOKEN(Keys.RESUME_TOKEN, FieldType.STRING),
+        BOARD(Keys.BOARD, FieldType.LONG),
+        MOVE_SEQ(Keys.MOVE_SEQ, FieldType.INT),
+        PLAYER_X(Keys.PLAYER_X, FieldType.STRING),
+        PLAYER_O(Keys.PLAYER_O, FieldType.STRING),
+        ROW(Keys.ROW, FieldType.INT),
+        COL(Keys.COL, FieldType.INT),
+        SYMBOL(Keys.SYMBOL, FieldType.SYMBOL),
+        NEXT_TURN(Keys.NEXT_TURN, FieldType.STRING),
+        NEXT_SYMBOL(Keys.NEXT_SYMBOL, FieldType.SYMBOL),
+        RESULT(Keys.RESULT, FieldType.STRING),
+        WINNER(Keys.WINNER, FieldType.STRING),
+        GAME_DURATION(Keys.GAME_DURATION, FieldType.LONG),
+        REASON(Keys.REASON, FieldType.STRING),
+        TOURNAMENT_ID(Keys.TOURNAMENT_ID, FieldType.LONG),
+        ROUND(Keys.ROUND, FieldType.INT),
+        ROUNDS(Keys.ROUNDS, FieldType.INT),
+        FINAL(Keys.FINAL, FieldType.BOOLEAN),
+        STANDINGS_NAMES(Keys.STANDINGS_NAMES, FieldType.STRINGS),
+        STANDINGS_POINTS(Keys.STANDINGS_POINTS, FieldType.INTS),
+        RANK(Keys.RANK, FieldType.INT),
+        POINTS(Keys.POINTS, FieldType.INT),
+        PLAYERS_MISSING(Keys.PLAYERS_MISSING, FieldType.INT),
+        MESSAGE(Keys.MESSAGE, FieldType.STRING),
+        RETRY_AFTER(Keys.RETRY_AFTER, FieldType.LONG),
+        REQUEST_ID(Keys.REQUEST_ID, FieldType.INT),
+        GAMES_PLAYED(Keys.GAMES_PLAYED, FieldType.INT),
+        GAMES_WON(Keys.GAMES_WON, FieldType.INT),
+        GAMES_LOST(Keys.GAMES_LOST, FieldType.INT),
+        GAMES_TIED(Keys.GAMES_TIED, FieldType.INT),
+        HISTORY_OPPONENTS(Keys.HISTORY_OPPONENTS, FieldType.STRINGS),
+        HISTORY_RESULTS(Keys.HISTORY_RESULTS, FieldType.STRINGS),
+        HISTORY_BOARD_SIZES(Keys.HISTORY_BOARD_SIZES, FieldType.INTS);
+
+        private static final Map<String, Field> BY_KEY = new HashMap<>();
+
+        static {
+            for (Field field : values()) {
+                BY_KEY.put(field.key, field);
+            }
+        }
+
+        private final String key;
+        private final FieldType type;
+
+        Field(String key, FieldType type) {
+            this.key = key;
+            this.type = type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public FieldType getType() {
+            return type;
+        }
+
+        // the field of a key, null if there is none
+        public static Field forKey(String key) {
+            return BY_KEY.get(key);
+        }
+    }
+
+    // true for a name the server takes at LOGIN and TOURNAMENT
+    public static boolean isValidName(String name) {
+        return name != null && name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+    }
+
+    // serializes a message on its own, so the same bytes can be sent to many spectators
+    public static byte[] encodeFrame(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    // reads a message created by encodeFrame
+    public static Message decodeFrame(byte[] frame) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(frame))) {
+            return (Message) in.readObject();
+        }
+    }
+
+    // message class for client server communication. fields are stored by their
+    // slot in the message type, numbers unboxed, so reading one does not hash, box
+    // or cast. getData and setData with the string keys remain for older code
     public static class Message implements Serializable {
         private static final long serialVersionUID = 1;
 
-        // message type and data
-        private MessageType type;
-        private Map<String, Object> data;
+        // serialized as before, the type and a map of the fields, so peers
+        // running older builds read and write the same bytes
+        private static final ObjectStreamField[] serialPersistentFields = {
+                new ObjectStreamField("type", MessageType.class),
+                new ObjectStreamField("data", Map.class)};
+
+        private transient MessageType type;
+        // numbers, booleans and symbols by slot
+        private transient long[] values;
+        // strings and arrays by slot, null for types without them
+        private transient Object[] objects;
+        // a bit per slot that holds a value
+        private transient long present;
 
         // creates a new message with the given type
         public Message(MessageType type) {
+            init(type);
+        }
+
+        private void init(MessageType type) {
+            this.type = type;
+            this.values = new long[type.fields.length];
+            this.objects = type.hasObjects ? new Object[type.fields.length] : null;
+        }
+
+        // empties the message for reuse with the given type, the arrays are kept when
+        // they are big enough. only for a message nobody else holds on to, e.g. one
+        // that was written and is not referenced by a queue
+        public void reset(MessageType type) {
+            int slots = type.fields.length;
+            if (values.length < slots) {
+                values = new long[slots];
+            } else {
+                Arrays.fill(values, 0);
+            }
+            if (type.hasObjects && (objects == null || objects.length < slots)) {
+                objects = new Object[slots];
+            } else if (objects != null) {
+                Arrays.fill(objects, null);
+            }
             this.type = type;
-            this.data = new HashMap<>();
+            this.present = 0;
         }
 
         public MessageType getType() {
             return type;
         }
 
+        private int slot(Field field) {
+            int slot = type.slots[field.ordinal()];
+            if (slot < 0) {
+                throw new IllegalArgumentException(type + " has no field " + field);
+            }
+            return slot;
+        }
+
+        public boolean has(Field field) {
+            int slot = type.slots[field.ordinal()];
+            return slot >= 0 && (present & (1L << slot)) != 0;
+        }
+
+        // ints, longs and symbols, 0 if the field is not set
+        public int getInt(Field field) {
+            return (int) values[slot(field)];
+        }
+
+        public long getLong(Field field) {
+            return values[slot(field)];
+        }
+
+        public boolean getBoolean(Field field) {
+            return values[slot(field)] != 0;
+        }
+
+        public char getSymbol(Field field) {
+            return (char) values[slot(field)];
+        }
+
+        // strings and arrays, null if the field is not set
+        public String getString(Field field) {
+            return (String) objects[slot(field)];
+        }
+
+        public String[] getStrings(Field field) {
+            return (String[]) objects[slot(field)];
+        }
+
+        public int[] getInts(Field field) {
+            return (int[]) objects[slot(field)];
+        }
+
+        // sets an INT or LONG field
+        public void set(Field field, long value) {
+            int slot = slot(field);
+            values[slot] = value;
+            present |= 1L << slot;
+        }
+
+        public void set(Field field, boolean value) {
+            set(field, value ? 1L : 0L);
+        }
+
+        public void set(Field field, char symbol) {
+            set(field, (long) symbol);
+        }
+
+        public void set(Field field, String value) {
+            setObject(field, value);
+        }
+
+        public void set(Field field, String[] value) {
+            setObject(field, value);
+        }
+
+        public void set(Field field, int[] value) {
+            setObject(field, value);
+        }
+
+        // clears a field, e.g. of a message that is sent again to somebody else
+        public void remove(Field field) {
+            int slot = slot(field);
+            values[slot] = 0;
+            if (objects != null) {
+                objects[slot] = null;
+            }
+            present &= ~(1L << slot);
+        }
+
+        private void setObject(Field field, Object value) {
+            if (!field.type.isObject()) {
+                throw new IllegalArgumentException(field + " is not a " + field.type);
+            }
+            int slot = slot(field);
+            objects[slot] = value;
+            if (value == null) {
+                present &= ~(1L << slot);
+            } else {
+                present |= 1L << slot;
+            }
+        }
+
+        // sets a field by its key, the value boxed as in the map based messages
         public void setData(String key, Object value) {
-            data.put(key, value);
+            Field field = Field.forKey(key);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown key: " + key);
+            }
+            if (value == null || field.type.isObject()) {
+                setObject(field, value);
+                return;
+            }
+            switch (field.type) {
+                case BOOLEAN:
+                    set(field, (boolean) value);
+                    break;
+                case SYMBOL:
+                    set(field, value.toString().charAt(0));
+                    break;
+                default:
+                    set(field, ((Number) value).longValue());
+            }
         }
 
+        // gets a field by its key, boxed as in the map based messages (symbols as
+        // one character strings), null if the message does not have it
         public Object getData(String key) {
-            return data.get(key);
+            Field field = Field.forKey(key);
+            if (field == null || !has(field)) {
+                return null;
+            }
+            int slot = type.slots[field.ordinal()];
+            switch (field.type) {
+                case INT:
+                    return (int) values[slot];
+                case LONG:
+                    return values[slot];
+                case BOOLEAN:
+                    return values[slot] != 0;
+                case SYMBOL:
+                    return String.valueOf((char) values[slot]);
+                default:
+                    return objects[slot];
+            }
         }
 
         // checks if key exists
         public boolean hasData(String key) {
-            return data.containsKey(key);
+            Field field = Field.forKey(key);
+            return field != null && has(field);
+        }
+
+        // the fields that are set, by key
+        private Map<String, Object> toMap() {
+            Map<String, Object> data = new HashMap<>();
+            for (Field field : type.fields) {
+                if (has(field)) {
+                    data.put(field.key, getData(field.key));
+                }
+            }
+            return data;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            ObjectOutputStream.PutField fields = out.putFields();
+            fields.put("type", type);
+            fields.put("data", toMap());
+            out.writeFields();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            ObjectInputStream.GetField fields = in.readFields();
+            MessageType messageType = (MessageType) fields.get("type", null);
+            if (messageType == null) {
+                throw new InvalidObjectException("Message without type");
+            }
+            init(messageType);
+            Map<String, Object> data = (Map<String, Object>) fields.get("data", null);
+            if (data == null) {
+                return;
+            }
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                Field field = Field.forKey(entry.getKey());
+                // fields of a newer peer are left out
+                if (field != null && messageType.hasField(field)) {
+                    setData(entry.getKey(), entry.getValue());
+                }
+            }
         }
 
         @Override
         public String toString() {
-            return "Message{type=" + type + ", data=" + data + "}";
+            return "Message{type=" + type + ", data=" + toMap() + "}";
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package com.tictactoe.client;
 
 import com.tictactoe.Utils;
+import com.tictactoe.game.Board;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
@@ -29,6 +30,9 @@ public class App extends Application {
     private Label statusLabel;
     private Label timerLabel;
 
+    // a move the server has not confirmed yet
+    private static final String PENDING_STYLE = "-fx-text-fill: gray;";
+
     // game state
     private long gameStartTime;
     private Timer gameTimer;
@@ -44,6 +48,7 @@ public class App extends Application {
 
         // set up message handler
         client.setMessageHandler(this::handleMessage);
+        client.setConnectionListener(this::handleConnectionChange);
 
         // show login scene
         primaryStage.setTitle("Tic Tac Toe");
@@ -70,6 +75,19 @@ public class App extends Application {
                     startGameTimer();
                     updateGameStatus();
                     break;
+                case RESYNC:
+                    // a RESYNC for the game on screen only repairs its board, the
+                    // timer keeps running
+                    if (primaryStage.getScene() != gameScene || boardButtons == null
+                            || boardButtons.length != client.getBoardSize()) {
+                        createGameScene(client.getBoardSize());
+                        showGameScene();
+                        stopGameTimer();
+                        startGameTimer();
+                    }
+                    redrawGameBoard();
+                    updateGameStatus();
+                    break;
                 case MOVE_RESULT:
                     updateGameBoard(message);
                     updateGameStatus();
@@ -78,13 +96,45 @@ public class App extends Application {
                     stopGameTimer();
                     showGameOverScene(message);
                     break;
+                case BUSY:
+                    showError((String) message.getData(Utils.Keys.MESSAGE));
+                    break;
                 case ERROR:
+                    // the client took back a refused move already
+                    if (primaryStage.getScene() == gameScene) {
+                        redrawGameBoard();
+                        updateGameStatus();
+                    }
                     showError((String) message.getData(Utils.Keys.MESSAGE));
                     break;
             }
         });
     }
 
+    // a lost connection is retried by the client, the player only sees it if it stays lost
+    private void handleConnectionChange(Client.ConnectionState state) {
+        Platform.runLater(() -> {
+            switch (state) {
+                case RECONNECTING:
+                    if (statusLabel != null && primaryStage.getScene() == gameScene) {
+                        statusLabel.setText("Connection lost, reconnecting...");
+                    }
+                    break;
+                case RECONNECTED:
+                    // the server sends the game state or WAIT again
+                    break;
+                case DISCONNECTED:
+                    stopGameTimer();
+                    primaryStage.setScene(loginScene);
+                    showError("Lost the connection to the server");
+                    if (!client.connect()) {
+                        showError("Could not connect to server. Please try again later");
+                    }
+                    break;
+            }
+        });
+    }
+
     // create the login scene
     private void createLoginScene() {
         Label titleLabel = new Label("Tic Tac Toe");
@@ -135,6 +185,10 @@ public class App extends Application {
                 showError("Please enter your name");
                 return;
             }
+            if (!Utils.isValidName(name)) {
+                showError("Please enter a shorter name");
+                return;
+            }
 
             int boardSize;
             if (size3x3.isSelected()) {
@@ -187,10 +241,12 @@ public class App extends Application {
                 final int finalRow = row;
                 final int finalCol = col;
                 button.setOnAction(e -> {
-                    if (client.isMyTurn()) {
+                    // shown before the server answers, greyed until it confirms
+                    if (client.makeMove(finalRow, finalCol)) {
                         button.setText(String.valueOf(client.getPlayerSymbol()));
                         button.setDisable(true);
-                        client.makeMove(finalRow, finalCol);
+                        button.setStyle(PENDING_STYLE);
+                        updateGameStatus();
                     }
                 });
 
@@ -297,11 +353,33 @@ public class App extends Application {
         Button button = boardButtons[row][col];
         button.setText(String.valueOf(symbol));
         button.setDisable(true);
+        button.setStyle("");
+    }
+
+    // draws the whole board as the client has it, after a resume or a refused move
+    private void redrawGameBoard() {
+        Board board = client.getBoard();
+        if (board == null) {
+            return;
+        }
+        int[] pending = client.getPendingMove();
+        for (int row = 0; row < board.getSize(); row++) {
+            for (int col = 0; col < board.getSize(); col++) {
+                char symbol = board.getSymbolAt(row, col);
+                Button button = boardButtons[row][col];
+                button.setText(symbol == Utils.SYMBOL_EMPTY ? "" : String.valueOf(symbol));
+                button.setDisable(symbol != Utils.SYMBOL_EMPTY);
+                boolean isPending = pending != null && pending[0] == row && pending[1] == col;
+                button.setStyle(isPending ? PENDING_STYLE : "");
+            }
+        }
     }
 
     // update the game status label
     private void updateGameStatus() {
-        if (client.isMyTurn()) {
+        if (client.hasPendingMove()) {
+            statusLabel.setText("Sending your move...");
+        } else if (client.isMyTurn()) {
             statusLabel.setText("Your turn (" + client.getPlayerSymbol() + ")");
         } else {
             statusLabel.setText(client.getOpponentName() + "'s turn (" + client.getOpponentSymbol() + ")");
@@ -350,10 +428,8 @@ public class App extends Application {
     // clean up resources when app stop
     @Override
     public void stop() {
-        // disconnect from server when app closes
-        if (client.isConnected()) {
-            client.disconnect();
-        }
+        // disconnect from server when app closes, this also stops a reconnect
+        client.disconnect();
 
         // stop the game timer
         stopGameTimer();
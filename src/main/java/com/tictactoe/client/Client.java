@@ -1,59 +1,175 @@
 package com.tictactoe.client;
 
 import com.tictactoe.Utils;
+import com.tictactoe.game.Board;
+import com.tictactoe.game.Game;
+import com.tictactoe.game.Player;
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class Client {
     private Socket socket;
-    private ObjectInputStream inputStream;
-    private ObjectOutputStream outputStream;
+    private MessageChannel channel;
+    // binary unless the server turned it down once, then serialized messages
+    private Protocol protocol = Protocol.BINARY;
 
     // player info
     private String playerName;
     private int boardSize;
-    private boolean connected;
-    private boolean inGame;
-    private boolean myTurn;
+    private volatile boolean connected;
+    // read by the ui thread, myTurn is only written under gameLock
+    private volatile boolean inGame;
+    private volatile boolean myTurn;
+    // after the server answers WATCH, it only sends frames
+    private volatile boolean spectating;
     private char playerSymbol;
     private String opponentName;
     private char opponentSymbol;
 
-    // store received messages
-    private BlockingQueue<Utils.Message> messageQueue;
+    // lets the client come back to its game after losing the connection
+    private long gameId;
+    private String resumeToken;
+
+    // the LOGIN or TOURNAMENT that is waiting for a game, sent again after a reconnect
+    private Utils.Message rejoinMessage;
+    // the game asked for with WATCH, watched again after a reconnect
+    private long watchedGameId;
+
+    // reconnects with backoff when the connection is lost, unless disconnect() was called
+    private boolean autoReconnect = true;
+    private volatile boolean closed;
+    private Thread reconnectThread;
+    private ConnectionListener connectionListener;
+
+    // the last move applied, a MOVE_RESULT must carry the next one
+    private int moveSeq;
+    // a SYNC is on its way, moves are ignored until the RESYNC replaces the board
+    private boolean syncing;
+
+    // the board as the server has it, a RESYNC built from it stands in for the
+    // updates the message handler was too slow for. a spectator also keeps the names
+    private Board board;
+    private String playerX;
+    private String playerO;
+
+    // the game as the player sees it: the server's board plus the own move that is on
+    // its way. the move shows at once and is taken back if the server refuses it
+    private Game game;
+    private int[] pendingMove;
+    // guards board, game and pendingMove, the UI moves while the listener applies results
+    private final Object gameLock = new Object();
+
+    // requests waiting for the reply that echoes their id, several may be on the wire at once
+    private final Map<Integer, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+    // received messages on their way from the listener to the dispatcher thread,
+    // which runs the message handler
+    private final EventRing<Utils.Message> events = new EventRing<>(Utils.CLIENT_EVENT_RING_SIZE);
+    private Thread dispatcherThread;
 
     // thread to listen for coming messages
     private Thread listenerThread;
 
+    // sends heartbeats so the server does not close the connection as idle
+    private Timer heartbeatTimer;
+
     // message handler
-    private MessageHandler messageHandler;
+    private volatile MessageHandler messageHandler;
 
     // interface for handling messages
     public interface MessageHandler {
         void handleMessage(Utils.Message message);
     }
 
+    public enum ConnectionState {
+        // the connection was lost, the client is trying to get it back
+        RECONNECTING,
+        // connected again, the game (or the wait for one) goes on
+        RECONNECTED,
+        // lost for good, the player has to start over
+        DISCONNECTED
+    }
+
+    // told when the connection is lost and when it comes back, on the reconnect thread
+    public interface ConnectionListener {
+        void connectionChanged(ConnectionState state);
+    }
+
+    // the reply to a request and how long it took
+    public static class Response {
+        private final Utils.Message message;
+        private final long roundTripNanos;
+
+        private Response(Utils.Message message, long roundTripNanos) {
+            this.message = message;
+            this.roundTripNanos = roundTripNanos;
+        }
+
+        public Utils.Message getMessage() {
+            return message;
+        }
+
+        // from the write of the request to the read of its reply
+        public long getRoundTripNanos() {
+            return roundTripNanos;
+        }
+
+        public boolean isError() {
+            return message.getType() == Utils.MessageType.ERROR;
+        }
+    }
+
+    private static class PendingRequest {
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        private volatile long sentNanos;
+    }
+
     // creates a new client
     public Client() {
-        this.messageQueue = new LinkedBlockingQueue<>();
         this.connected = false;
         this.inGame = false;
+        startDispatcher();
     }
 
     // connects to the server
     public boolean connect() {
+        closed = false;
+        return openConnection();
+    }
+
+    private boolean openConnection() {
         try {
             socket = new Socket(Utils.SERVER_HOST, Utils.SERVER_PORT);
-            outputStream = new ObjectOutputStream(socket.getOutputStream());
-            inputStream = new ObjectInputStream(socket.getInputStream());
+            // moves are tiny writes, Nagle would hold them back waiting for an ACK
+            socket.setTcpNoDelay(true);
+            // the server answers every heartbeat, so a silent socket means a dead server
+            socket.setSoTimeout(Utils.CLIENT_READ_TIMEOUT_MS);
+            try {
+                channel = MessageChannel.connect(socket, protocol);
+            } catch (ProtocolException e) {
+                // an older server, it already gave up on this connection
+                socket.close();
+                protocol = Protocol.LEGACY;
+                return openConnection();
+            }
             connected = true;
+            spectating = false;
 
             // start listening for messages
             startMessageListener();
+            startHeartbeat();
 
             return true;
         } catch (IOException e) {
@@ -62,62 +178,97 @@ public class Client {
         }
     }
 
-    // disconnects from the server
+    // disconnects from the server, also stops a reconnect that is under way
     public void disconnect() {
+        closed = true;
+        if (reconnectThread != null) {
+            reconnectThread.interrupt();
+        }
         if (connected) {
+            // cleared first, a failing QUIT below calls disconnect again
+            connected = false;
             try {
                 // send quit message
                 sendMessage(new Utils.Message(Utils.MessageType.QUIT));
 
-                // stop the listener thread
+                // stop the heartbeat and the listener thread
+                if (heartbeatTimer != null) {
+                    heartbeatTimer.cancel();
+                }
                 if (listenerThread != null) {
                     listenerThread.interrupt();
                 }
 
                 // close streams and socket
-                if (inputStream != null) inputStream.close();
-                if (outputStream != null) outputStream.close();
+                if (channel != null) channel.close();
                 if (socket != null) socket.close();
 
-                connected = false;
                 inGame = false;
             } catch (IOException e) {
                 System.err.println("Error disconnecting from server: " + e.getMessage());
             }
+            failPendingRequests();
         }
     }
 
     // starts listening for server messages
     private void startMessageListener() {
+        // a listener of an older connection may still be running after a reconnect
+        MessageChannel listened = channel;
         listenerThread = new Thread(() -> {
             try {
-                while (connected) {
-                    Utils.Message message = (Utils.Message) inputStream.readObject();
+                while (connected && channel == listened) {
+                    Utils.Message message = spectating ? channel.readFrame() : channel.read();
+                    if (message.getType() == Utils.MessageType.WATCH) {
+                        spectating = true;
+                    }
+                    if (message.has(Utils.Field.REQUEST_ID)) {
+                        completeRequest(message);
+                    }
+
+                    // heartbeats are not passed to the message handler
+                    if (message.getType() == Utils.MessageType.PING) {
+                        sendMessage(new Utils.Message(Utils.MessageType.PONG));
+                        continue;
+                    }
+                    if (message.getType() == Utils.MessageType.PONG) {
+                        continue;
+                    }
 
                     // process the message based on the type
                     switch (message.getType()) {
                         case GAME_START:
                             handleGameStart(message);
                             break;
+                        case RESYNC:
+                            if (!spectating) {
+                                handleResync(message);
+                            }
+                            trackResync(message);
+                            break;
                         case MOVE_RESULT:
-                            handleMoveResult(message);
+                            if (!handleMoveResult(message)) {
+                                continue;
+                            }
+                            applyMoveResult(message);
                             break;
                         case GAME_OVER:
-                            handleGameOver(message);
+                            if (!handleGameOver(message)) {
+                                continue;
+                            }
+                            break;
+                        case BUSY:
+                            System.out.println("Server is busy, retry in " +
+                                    message.getLong(Utils.Field.RETRY_AFTER) + " ms");
                             break;
                     }
 
-                    // add message to the queue
-                    messageQueue.add(message);
-
-                    if (messageHandler != null) {
-                        messageHandler.handleMessage(message);
-                    }
+                    dispatch(message);
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                if (connected) {
+            } catch (IOException e) {
+                if (connected && channel == listened) {
                     System.err.println("Error receiving message: " + e.getMessage());
-                    disconnect();
+                    connectionLost();
                 }
             }
         });
@@ -126,6 +277,239 @@ public class Client {
         listenerThread.start();
     }
 
+    // closes a broken connection and, unless auto reconnect is off, tries to get it back
+    private synchronized void connectionLost() {
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // it is broken already
+        }
+        failPendingRequests();
+
+        if (!autoReconnect || closed) {
+            inGame = false;
+            notifyConnection(ConnectionState.DISCONNECTED);
+            return;
+        }
+        notifyConnection(ConnectionState.RECONNECTING);
+        reconnectThread = new Thread(this::reconnect, "client-reconnect");
+        reconnectThread.setDaemon(true);
+        reconnectThread.start();
+    }
+
+    // connects again with jittered exponential backoff, so clients that lost the same
+    // server do not all come back at once, then restores what the player was doing
+    private void reconnect() {
+        long giveUp = System.currentTimeMillis() + Utils.RECONNECT_GIVE_UP_MS;
+        long backoff = Utils.RECONNECT_INITIAL_BACKOFF_MS;
+        while (!closed && System.currentTimeMillis() < giveUp) {
+            try {
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, Utils.RECONNECT_MAX_BACKOFF_MS);
+
+            if (!closed && openConnection()) {
+                if (closed) {
+                    disconnect();
+                    return;
+                }
+                if (restoreSession()) {
+                    notifyConnection(ConnectionState.RECONNECTED);
+                    return;
+                }
+            }
+        }
+        if (!closed) {
+            inGame = false;
+            notifyConnection(ConnectionState.DISCONNECTED);
+        }
+    }
+
+    // puts the player back where it was: in its game, watching, or waiting for a game
+    private boolean restoreSession() {
+        if (inGame && resumeToken != null) {
+            Utils.Message resumeMessage = new Utils.Message(Utils.MessageType.RESUME);
+            resumeMessage.set(Utils.Field.RESUME_TOKEN, resumeToken);
+            CompletableFuture<Response> resumed = request(resumeMessage);
+            // the game ended or the seat was given up while the client was away
+            resumed.thenAccept(response -> {
+                if (response.isError()) {
+                    inGame = false;
+                    resumeToken = null;
+                }
+            });
+            return !resumed.isCompletedExceptionally();
+        }
+        if (watchedGameId != 0) {
+            return watch(watchedGameId);
+        }
+        if (rejoinMessage != null) {
+            return sendMessage(rejoinMessage);
+        }
+        return true;
+    }
+
+    private void notifyConnection(ConnectionState state) {
+        if (connectionListener != null) {
+            connectionListener.connectionChanged(state);
+        }
+    }
+
+    // completes the request a reply answers, replies of the server may come in any order
+    private void completeRequest(Utils.Message message) {
+        PendingRequest request = pendingRequests.remove(message.getInt(Utils.Field.REQUEST_ID));
+        if (request != null) {
+            request.future.complete(new Response(message, System.nanoTime() - request.sentNanos));
+        }
+    }
+
+    private void failPendingRequests() {
+        for (Integer id : pendingRequests.keySet()) {
+            PendingRequest request = pendingRequests.remove(id);
+            if (request != null) {
+                request.future.completeExceptionally(new IOException("Disconnected"));
+            }
+        }
+    }
+
+    // sends a message with a new request id without waiting for earlier requests. the
+    // future completes with the reply that echoes the id (ERROR included), or fails if
+    // the message could not be sent or the connection is lost first. it completes on
+    // the listener thread, callbacks must not block it
+    public CompletableFuture<Response> request(Utils.Message message) {
+        return request(message, null);
+    }
+
+    // like request(message), the callback is attached before the message is sent, so it
+    // runs before the reply reaches the message handler
+    private CompletableFuture<Response> request(Utils.Message message, BiConsumer<Response, Throwable> onReply) {
+        PendingRequest request = new PendingRequest();
+        if (onReply != null) {
+            request.future.whenComplete(onReply);
+        }
+        if (!connected) {
+            request.future.completeExceptionally(new IOException("Not connected"));
+            return request.future;
+        }
+        int id = nextRequestId.getAndIncrement();
+        pendingRequests.put(id, request);
+        message.set(Utils.Field.REQUEST_ID, id);
+        request.sentNanos = System.nanoTime();
+        if (!sendMessage(message) && pendingRequests.remove(id) != null) {
+            request.future.completeExceptionally(new IOException("Could not send " + message.getType()));
+        }
+        return request.future;
+    }
+
+    // asks for the games played, won, lost and tied by a player, answered with STATS
+    public CompletableFuture<Response> queryStats(String playerName) {
+        Utils.Message statsMessage = new Utils.Message(Utils.MessageType.STATS);
+        statsMessage.set(Utils.Field.PLAYER_NAME, playerName);
+        return request(statsMessage);
+    }
+
+    // asks for the last games of a player, answered with HISTORY
+    public CompletableFuture<Response> queryHistory(String playerName) {
+        Utils.Message historyMessage = new Utils.Message(Utils.MessageType.HISTORY);
+        historyMessage.set(Utils.Field.PLAYER_NAME, playerName);
+        return request(historyMessage);
+    }
+
+    // runs the message handler for every message the listener passes on. a slow
+    // handler never holds up the listener, so heartbeats and replies keep flowing
+    private void startDispatcher() {
+        dispatcherThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Utils.Message message = events.take();
+                    MessageHandler handler = messageHandler;
+                    if (handler == null) {
+                        continue;
+                    }
+                    try {
+                        handler.handleMessage(message);
+                    } catch (RuntimeException e) {
+                        System.err.println("Error handling message: " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the client is no longer used
+            }
+        }, "client-dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    // passes a message to the dispatcher. with the ring full, a state update is folded
+    // into the latest state, which the handler gets in place of all of them: a RESYNC
+    // of the board during a game, else the WAIT or GAME_OVER itself. anything else is
+    // dropped. runs on the listener thread
+    private void dispatch(Utils.Message message) {
+        Utils.MessageType type = message.getType();
+        boolean stateUpdate = type == Utils.MessageType.GAME_START || type == Utils.MessageType.MOVE_RESULT
+                || type == Utils.MessageType.RESYNC || type == Utils.MessageType.WAIT
+                || type == Utils.MessageType.GAME_OVER;
+        if (stateUpdate && (events.isCoalescing() || !events.offer(message))) {
+            events.coalesce(board != null ? stateSnapshot() : message);
+        } else if (!stateUpdate && !events.offer(message)) {
+            events.drop();
+        }
+    }
+
+    // the game as the client knows it, in the form of the server's RESYNC
+    private Utils.Message stateSnapshot() {
+        Utils.Message snapshot = new Utils.Message(Utils.MessageType.RESYNC);
+        snapshot.set(Utils.Field.GAME_ID, gameId);
+        snapshot.set(Utils.Field.BOARD_SIZE, board.getSize());
+        snapshot.set(Utils.Field.BOARD, board.pack());
+        if (spectating) {
+            snapshot.set(Utils.Field.PLAYER_X, playerX);
+            snapshot.set(Utils.Field.PLAYER_O, playerO);
+            return snapshot;
+        }
+        snapshot.set(Utils.Field.MOVE_SEQ, moveSeq);
+        snapshot.set(Utils.Field.NEXT_TURN, myTurn ? playerName : opponentName);
+        snapshot.set(Utils.Field.PLAYER_SYMBOL, playerSymbol);
+        snapshot.set(Utils.Field.OPPONENT_NAME, opponentName);
+        snapshot.set(Utils.Field.OPPONENT_SYMBOL, opponentSymbol);
+        snapshot.set(Utils.Field.IS_YOUR_TURN, myTurn);
+        return snapshot;
+    }
+
+    // sends a PING every heartbeat interval
+    private void startHeartbeat() {
+        heartbeatTimer = new Timer(true);
+        heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                if (connected) {
+                    sendMessage(new Utils.Message(Utils.MessageType.PING));
+                }
+            }
+        }, Utils.HEARTBEAT_INTERVAL_MS, Utils.HEARTBEAT_INTERVAL_MS);
+    }
+
+    // starts watching a live game, the server sends its state and then every move
+    public boolean watch(long gameId) {
+        if (!connected) {
+            return false;
+        }
+
+        watchedGameId = gameId;
+        Utils.Message watchMessage = new Utils.Message(Utils.MessageType.WATCH);
+        watchMessage.set(Utils.Field.GAME_ID, gameId);
+        return sendMessage(watchMessage);
+    }
+
     // sends login request to server
     public boolean login(String playerName, int boardSize) {
         if (!connected) {
@@ -137,74 +521,249 @@ public class Client {
 
         // create login message
         Utils.Message loginMessage = new Utils.Message(Utils.MessageType.LOGIN);
-        loginMessage.setData(Utils.Keys.PLAYER_NAME, playerName);
-        loginMessage.setData(Utils.Keys.BOARD_SIZE, boardSize);
+        loginMessage.set(Utils.Field.PLAYER_NAME, playerName);
+        loginMessage.set(Utils.Field.BOARD_SIZE, boardSize);
 
         // send login message
+        rejoinMessage = loginMessage;
         return sendMessage(loginMessage);
     }
 
-    // makes a move on the board
-    public boolean makeMove(int row, int col) {
-        if (!connected || !inGame || !myTurn) {
+    // registers for the next tournament, the server sends a GAME_START for every
+    // round and STANDINGS after it
+    public boolean joinTournament(String playerName, int boardSize) {
+        if (!connected) {
             return false;
         }
 
+        this.playerName = playerName;
+        this.boardSize = boardSize;
+
+        Utils.Message tournamentMessage = new Utils.Message(Utils.MessageType.TOURNAMENT);
+        tournamentMessage.set(Utils.Field.PLAYER_NAME, playerName);
+        tournamentMessage.set(Utils.Field.BOARD_SIZE, boardSize);
+        rejoinMessage = tournamentMessage;
+        return sendMessage(tournamentMessage);
+    }
+
+    // re-attaches to the current game after the connection was lost,
+    // the server answers with RESYNC (or ERROR if the game is gone)
+    public boolean resume() {
+        if (resumeToken == null || (!connected && !connect())) {
+            return false;
+        }
+
+        Utils.Message resumeMessage = new Utils.Message(Utils.MessageType.RESUME);
+        resumeMessage.set(Utils.Field.RESUME_TOKEN, resumeToken);
+        return sendMessage(resumeMessage);
+    }
+
+    // makes a move on the board. the move is on the local board right away and pending
+    // until the server's MOVE_RESULT confirms it, an ERROR for it takes it back
+    public boolean makeMove(int row, int col) {
+        int[] move = {row, col};
+        synchronized (gameLock) {
+            if (!connected || !inGame || !myTurn || pendingMove != null || game == null
+                    || !game.isValidMove(row, col)) {
+                return false;
+            }
+            game.makeMove(row, col);
+            pendingMove = move;
+            myTurn = false;
+        }
+
         // create move message
         Utils.Message moveMessage = new Utils.Message(Utils.MessageType.MOVE);
-        moveMessage.setData(Utils.Keys.ROW, row);
-        moveMessage.setData(Utils.Keys.COL, col);
+        moveMessage.set(Utils.Field.GAME_ID, gameId);
+        moveMessage.set(Utils.Field.ROW, row);
+        moveMessage.set(Utils.Field.COL, col);
+
+        // send move message, the mover's MOVE_RESULT or ERROR echoes its id
+        CompletableFuture<Response> result = request(moveMessage, (response, error) -> {
+            if (error != null || response.isError()) {
+                rollbackMove(move);
+            }
+        });
+        return !result.isCompletedExceptionally();
+    }
 
-        // send move message
-        boolean sent = sendMessage(moveMessage);
+    // takes back a move the server refused, unless a later state replaced it already
+    private void rollbackMove(int[] move) {
+        synchronized (gameLock) {
+            if (pendingMove != move) {
+                return;
+            }
+            pendingMove = null;
+            if (inGame) {
+                myTurn = true;
+                rebuildGame();
+            }
+        }
+    }
 
-        // set my turn to false until move result is received
-        if (sent) {
-            myTurn = false;
+    // applies a move the server confirmed, the own pending move is already on the local board
+    private void applyMoveResult(Utils.Message message) {
+        int row = message.getInt(Utils.Field.ROW);
+        int col = message.getInt(Utils.Field.COL);
+        char symbol = message.getSymbol(Utils.Field.SYMBOL);
+        synchronized (gameLock) {
+            if (board == null) {
+                return;
+            }
+            board.makeMove(row, col, symbol);
+            if (game == null) {
+                return;
+            }
+            if (pendingMove != null && symbol == playerSymbol && pendingMove[0] == row && pendingMove[1] == col) {
+                pendingMove = null;
+            } else {
+                rebuildGame();
+            }
         }
+    }
 
-        return sent;
+    // the local game from the server's board, with the pending move on top if it still fits.
+    // holds gameLock
+    private void rebuildGame() {
+        if (board == null || spectating) {
+            game = null;
+            return;
+        }
+        Player me = new Player(playerName);
+        me.setSymbol(playerSymbol);
+        Player opponent = new Player(opponentName);
+        opponent.setSymbol(opponentSymbol);
+        Player x = playerSymbol == Utils.SYMBOL_X ? me : opponent;
+        Player o = x == me ? opponent : me;
+
+        // the server still waits for the pending move
+        game = new Game(Board.unpack(board.getSize(), board.pack()), x, o,
+                myTurn || pendingMove != null ? me : opponent);
+        if (pendingMove != null) {
+            if (game.isValidMove(pendingMove[0], pendingMove[1])) {
+                game.makeMove(pendingMove[0], pendingMove[1]);
+                myTurn = false;
+            } else {
+                // the server applied it already
+                pendingMove = null;
+            }
+        }
     }
 
-    // sends a message to the server
-    private boolean sendMessage(Utils.Message message) {
+    // sends a message to the server, the heartbeat timer and the caller may send at the same time
+    private synchronized boolean sendMessage(Utils.Message message) {
         try {
-            outputStream.writeObject(message);
-            outputStream.flush();
+            channel.write(message);
             return true;
         } catch (IOException e) {
             System.err.println("Error sending message: " + e.getMessage());
-            disconnect();
+            connectionLost();
             return false;
         }
     }
 
     // handles game start message
     private void handleGameStart(Utils.Message message) {
-        playerSymbol = message.getData(Utils.Keys.PLAYER_SYMBOL).toString().charAt(0);
-        opponentName = (String) message.getData(Utils.Keys.OPPONENT_NAME);
-        opponentSymbol = message.getData(Utils.Keys.OPPONENT_SYMBOL).toString().charAt(0);
-        myTurn = (boolean) message.getData(Utils.Keys.IS_YOUR_TURN);
+        playerSymbol = message.getSymbol(Utils.Field.PLAYER_SYMBOL);
+        opponentName = message.getString(Utils.Field.OPPONENT_NAME);
+        opponentSymbol = message.getSymbol(Utils.Field.OPPONENT_SYMBOL);
+        gameId = message.getLong(Utils.Field.GAME_ID);
+        resumeToken = message.getString(Utils.Field.RESUME_TOKEN);
+        rejoinMessage = null;
+        synchronized (gameLock) {
+            myTurn = message.getBoolean(Utils.Field.IS_YOUR_TURN);
+            board = new Board(message.getInt(Utils.Field.BOARD_SIZE));
+            pendingMove = null;
+            rebuildGame();
+        }
+        moveSeq = 0;
+        syncing = false;
         inGame = true;
 
         System.out.println("Game started! You are playing as " + playerSymbol +
                 " against " + opponentName + " (" + opponentSymbol + ")");
     }
 
-    // handles move result message
-    private void handleMoveResult(Utils.Message message) {
-        String nextTurn = (String) message.getData(Utils.Keys.NEXT_TURN);
-        myTurn = nextTurn.equals(playerName);
+    // handles the full game state sent after a resume or a SYNC
+    private void handleResync(Utils.Message message) {
+        moveSeq = message.getInt(Utils.Field.MOVE_SEQ);
+        syncing = false;
+        boardSize = message.getInt(Utils.Field.BOARD_SIZE);
+        playerSymbol = message.getSymbol(Utils.Field.PLAYER_SYMBOL);
+        opponentName = message.getString(Utils.Field.OPPONENT_NAME);
+        opponentSymbol = message.getSymbol(Utils.Field.OPPONENT_SYMBOL);
+        synchronized (gameLock) {
+            myTurn = message.getBoolean(Utils.Field.IS_YOUR_TURN);
+        }
+        inGame = true;
+    }
+
+    // keeps the board of a RESYNC, for players and spectators
+    private void trackResync(Utils.Message message) {
+        if (spectating) {
+            gameId = message.getLong(Utils.Field.GAME_ID);
+            playerX = message.getString(Utils.Field.PLAYER_X);
+            playerO = message.getString(Utils.Field.PLAYER_O);
+        }
+        synchronized (gameLock) {
+            board = Board.unpack(message.getInt(Utils.Field.BOARD_SIZE), message.getLong(Utils.Field.BOARD));
+            rebuildGame();
+        }
     }
 
-    // handles game over message
-    private void handleGameOver(Utils.Message message) {
+    // handles move result message, returns false if the message must not reach the
+    // message handler: a move the board already has, or one after a gap
+    private boolean handleMoveResult(Utils.Message message) {
+        // spectators cannot ask for the state, older servers do not number moves
+        if (!spectating && message.has(Utils.Field.MOVE_SEQ)) {
+            int seq = message.getInt(Utils.Field.MOVE_SEQ);
+            if (syncing || seq <= moveSeq) {
+                return false;
+            }
+            if (seq != moveSeq + 1) {
+                // a move is missing, the board is wrong until the server sends its state
+                syncing = true;
+                Utils.Message syncMessage = new Utils.Message(Utils.MessageType.SYNC);
+                syncMessage.set(Utils.Field.GAME_ID, gameId);
+                sendMessage(syncMessage);
+                return false;
+            }
+            moveSeq = seq;
+        }
+
+        // older servers only name the player to move
+        boolean next;
+        if (message.has(Utils.Field.NEXT_SYMBOL)) {
+            next = message.getSymbol(Utils.Field.NEXT_SYMBOL) == playerSymbol;
+        } else {
+            next = playerName.equals(message.getString(Utils.Field.NEXT_TURN));
+        }
+        synchronized (gameLock) {
+            myTurn = next;
+        }
+        return true;
+    }
+
+    // handles game over message, false for a game the server aborted because it
+    // restarts: the client keeps its seat and resumes the game once it reconnected
+    private boolean handleGameOver(Utils.Message message) {
+        String result = message.getString(Utils.Field.RESULT);
+        if (result.equals("aborted")) {
+            System.out.println("The server is restarting, the game goes on once it is back.");
+            return false;
+        }
+
         inGame = false;
-        myTurn = false;
+        synchronized (gameLock) {
+            board = null;
+            game = null;
+            pendingMove = null;
+            myTurn = false;
+        }
+        resumeToken = null;
 
-        String result = (String) message.getData(Utils.Keys.RESULT);
-        String winner = (String) message.getData(Utils.Keys.WINNER);
-        long gameDuration = (long) message.getData(Utils.Keys.GAME_DURATION);
+        String winner = message.getString(Utils.Field.WINNER);
+        long gameDuration = message.getLong(Utils.Field.GAME_DURATION);
 
         if (result.equals("win")) {
             if (winner.equals(playerName)) {
@@ -217,6 +776,7 @@ public class Client {
         }
 
         System.out.println("Game duration: " + formatDuration(gameDuration));
+        return true;
     }
 
     // formats duration from milliseconds to minutes:seconds
@@ -233,30 +793,23 @@ public class Client {
         this.messageHandler = handler;
     }
 
-    // gets the next message from the queue
-    public Utils.Message getNextMessage() {
-        return messageQueue.poll();
+    public void setConnectionListener(ConnectionListener listener) {
+        this.connectionListener = listener;
     }
 
-    // waits for a specific message type
-    public Utils.Message waitForMessage(Utils.MessageType type, long timeoutMs) {
-        long endTime = System.currentTimeMillis() + timeoutMs;
-
-        while (System.currentTimeMillis() < endTime) {
-            Utils.Message message = getNextMessage();
-            if (message != null && message.getType() == type) {
-                return message;
-            }
+    // on by default, without it a lost connection ends like disconnect()
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
 
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                return null;
-            }
-        }
+    // messages the handler did not get because it fell behind
+    public long getDroppedMessages() {
+        return events.getDropped();
+    }
 
-        return null;
+    // board updates the handler got folded into a RESYNC because it fell behind
+    public long getCoalescedMessages() {
+        return events.getCoalesced();
     }
 
     public boolean isConnected() {
@@ -267,10 +820,36 @@ public class Client {
         return inGame;
     }
 
+    public boolean isSpectating() {
+        return spectating;
+    }
+
     public boolean isMyTurn() {
         return myTurn;
     }
 
+    // the board as the player sees it, with the pending move, a copy the caller may keep
+    public Board getBoard() {
+        synchronized (gameLock) {
+            Board current = game != null ? game.getBoard() : board;
+            return current != null ? Board.unpack(current.getSize(), current.pack()) : null;
+        }
+    }
+
+    // true while the own last move waits for the server
+    public boolean hasPendingMove() {
+        synchronized (gameLock) {
+            return pendingMove != null;
+        }
+    }
+
+    // row and column of the move that waits for the server, null if there is none
+    public int[] getPendingMove() {
+        synchronized (gameLock) {
+            return pendingMove != null ? pendingMove.clone() : null;
+        }
+    }
+
     public char getPlayerSymbol() {
         return playerSymbol;
     }
@@ -287,6 +866,10 @@ public class Client {
         return playerName;
     }
 
+    public long getGameId() {
+        return gameId;
+    }
+
     public int getBoardSize() {
         return boardSize;
     }
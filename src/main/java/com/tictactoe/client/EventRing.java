@@ -0,0 +1,133 @@
+package com.tictactoe.client;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// bounded queue from one producer thread to one consumer thread, without locks.
+// an item that does not fit is either dropped or folded into a single coalesced
+// item, which stands in for everything folded into it: the consumer gets it where
+// the first of those items would have been, and the producer replaces it while
+// the consumer has not taken it yet
+class EventRing<T> {
+    private final Object[] slots;
+    private final int mask;
+    // next position to take, written by the consumer only
+    private volatile long head;
+    // next position to fill, written by the producer only
+    private volatile long tail;
+    // the consumer while it is parked on an empty ring
+    private volatile Thread waiter;
+    private final AtomicReference<Coalesced<T>> coalesced = new AtomicReference<>();
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+
+    private static final class Coalesced<T> {
+        private final T item;
+        // delivered once the consumer reached this position
+        private final long position;
+
+        private Coalesced(T item, long position) {
+            this.item = item;
+            this.position = position;
+        }
+    }
+
+    // capacity is rounded up to a power of two
+    EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    // producer: adds an item, false if the ring is full
+    boolean offer(T item) {
+        long t = tail;
+        if (t - head == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = item;
+        // the volatile write publishes the slot
+        tail = t + 1;
+        wakeConsumer();
+        return true;
+    }
+
+    // producer: counts an item that was neither queued nor folded
+    void drop() {
+        dropped.increment();
+    }
+
+    // producer: true while a coalesced item waits for the consumer. items that fold
+    // into it must keep doing so, or they would overtake it
+    boolean isCoalescing() {
+        return coalesced.get() != null;
+    }
+
+    // producer: replaces the coalesced item with one that includes everything before
+    void coalesce(T item) {
+        Coalesced<T> previous = coalesced.get();
+        // only the consumer clears it, then the new item starts where the producer is now
+        if (previous == null || !coalesced.compareAndSet(previous, new Coalesced<>(item, previous.position))) {
+            coalesced.set(new Coalesced<>(item, tail));
+        }
+        folded.increment();
+        wakeConsumer();
+    }
+
+    private void wakeConsumer() {
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    // consumer: the next item, or null if there is none
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head;
+        Coalesced<T> pending = coalesced.get();
+        if (pending != null && h >= pending.position && coalesced.compareAndSet(pending, null)) {
+            return pending.item;
+        }
+        if (h == tail) {
+            return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) slots[index];
+        // cleared so a taken message is not kept alive by the ring
+        slots[index] = null;
+        head = h + 1;
+        return item;
+    }
+
+    // consumer: waits for the next item
+    T take() throws InterruptedException {
+        while (true) {
+            T item = poll();
+            if (item != null) {
+                return item;
+            }
+            // published before looking again, so an offer after this either is seen or unparks
+            waiter = Thread.currentThread();
+            if (head == tail && coalesced.get() == null) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    // items dropped because the ring was full
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    // items folded into a coalesced item instead of being queued
+    long getCoalesced() {
+        return folded.sum();
+    }
+}
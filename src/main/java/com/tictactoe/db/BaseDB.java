@@ -135,6 +135,13 @@ public abstract class BaseDB<T extends BaseEntity> {
         changeLog.add(new ChangeEntity(entity, ChangeType.UPDATE, this::createUpdateStatement));
     }
 
+    /**
+     * Add an update with its own statement to the change log, e.g. one relative to the stored values
+     */
+    protected void update(T entity, StatementCreator<T> statementCreator) {
+        changeLog.add(new ChangeEntity(entity, ChangeType.UPDATE, statementCreator));
+    }
+
     /**
      * Add entity to the delete queue
      */
@@ -146,40 +153,36 @@ public abstract class BaseDB<T extends BaseEntity> {
      * Save all changes in the change log to the database
      */
     public void saveChanges() {
-        if (changeLog.isEmpty()) {
-            return;
+        saveAll(this);
+    }
+
+    /**
+     * Save the changes of several DB objects in one transaction, either all of them are
+     * stored or none. Returns false if the transaction was rolled back
+     */
+    public static boolean saveAll(BaseDB<?>... databases) {
+        boolean empty = true;
+        for (BaseDB<?> database : databases) {
+            empty &= database.changeLog.isEmpty();
+        }
+        if (empty) {
+            return true;
         }
 
         Connection conn = null;
         try {
-            conn = getConnection();
+            conn = databases[0].getConnection();
             conn.setAutoCommit(false);
 
-            for (ChangeEntity change : changeLog) {
-                PreparedStatement pstmt = change.createStatement(conn, (T) change.getEntity());
-                pstmt.executeUpdate();
-
-                if (change.getType() == ChangeType.INSERT) {
-                    // Get the ID of the last inserted row
-                    try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                        if (rs.next()) {
-                            change.getEntity().setId(rs.getInt(1));
-                        }
-                    } catch (SQLException e) {
-                        // Some JDBC drivers may not support getGeneratedKeys()
-                        // In this case, we perform a separate query to get the last inserted ID
-                        try (Statement stmt = conn.createStatement();
-                             ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()")) {
-                            if (rs.next()) {
-                                change.getEntity().setId(rs.getInt(1));
-                            }
-                        }
-                    }
-                }
+            for (BaseDB<?> database : databases) {
+                database.executeChanges(conn);
             }
 
             conn.commit();
-            changeLog.clear();
+            for (BaseDB<?> database : databases) {
+                database.changeLog.clear();
+            }
+            return true;
 
         } catch (SQLException e) {
             System.err.println("Error saving changes: " + e.getMessage());
@@ -190,6 +193,11 @@ public abstract class BaseDB<T extends BaseEntity> {
                     System.err.println("Error rolling back transaction: " + ex.getMessage());
                 }
             }
+            // ids of rows that were rolled back do not exist
+            for (BaseDB<?> database : databases) {
+                database.clearInsertedIds();
+            }
+            return false;
         } finally {
             if (conn != null) {
                 try {
@@ -202,6 +210,42 @@ public abstract class BaseDB<T extends BaseEntity> {
         }
     }
 
+    /**
+     * Run the statements of the change log on a connection that is in a transaction
+     */
+    private void executeChanges(Connection conn) throws SQLException {
+        for (ChangeEntity change : changeLog) {
+            PreparedStatement pstmt = change.createStatement(conn, (T) change.getEntity());
+            pstmt.executeUpdate();
+
+            if (change.getType() == ChangeType.INSERT) {
+                // Get the ID of the last inserted row
+                try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                    if (rs.next()) {
+                        change.getEntity().setId(rs.getInt(1));
+                    }
+                } catch (SQLException e) {
+                    // Some JDBC drivers may not support getGeneratedKeys()
+                    // In this case, we perform a separate query to get the last inserted ID
+                    try (Statement stmt = conn.createStatement();
+                         ResultSet rs = stmt.executeQuery("SELECT LAST_INSERT_ID()")) {
+                        if (rs.next()) {
+                            change.getEntity().setId(rs.getInt(1));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void clearInsertedIds() {
+        for (ChangeEntity change : changeLog) {
+            if (change.getType() == ChangeType.INSERT) {
+                change.getEntity().setId(0);
+            }
+        }
+    }
+
     /**
      * Create the database tables if they don't exist
      */
@@ -249,7 +293,7 @@ public abstract class BaseDB<T extends BaseEntity> {
     /**
      * Interface for creating prepared statements
      */
-    private interface StatementCreator<T extends BaseEntity> {
+    protected interface StatementCreator<T extends BaseEntity> {
         PreparedStatement createStatement(Connection conn, T entity) throws SQLException;
     }
 
@@ -144,12 +144,35 @@ public class GameDB extends BaseDB<GameEntity> {
             }
         }
 
-        // Save the game
+        // Save the game and the player changes in one transaction
         insert(game);
-        saveChanges();
+        saveAll(this, playerDB);
+    }
+
+    /**
+     * Get the most recent games of a player
+     */
+    public List<GameEntity> getGamesByPlayer(int playerId, int limit) {
+        List<GameEntity> games = new ArrayList<>();
+        String sql = "SELECT * FROM games WHERE player1_id = ? OR player2_id = ? ORDER BY played_at DESC LIMIT ?";
 
-        // Save player changes
-        playerDB.saveChanges();
+        try (Connection conn = getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setInt(1, playerId);
+            pstmt.setInt(2, playerId);
+            pstmt.setInt(3, limit);
+            ResultSet rs = pstmt.executeQuery();
+
+            while (rs.next()) {
+                games.add(createModel(rs));
+            }
+
+        } catch (SQLException e) {
+            System.err.println("Error getting games by player: " + e.getMessage());
+        }
+
+        return games;
     }
 
     /**
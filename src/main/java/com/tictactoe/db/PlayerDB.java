@@ -142,16 +142,32 @@ public class PlayerDB extends BaseDB<PlayerEntity> {
      * Update player statistics after a game
      */
     public void updatePlayerStats(PlayerEntity player, String result) {
+        int won = result.equals("WIN") ? 1 : 0;
+        int lost = result.equals("LOSE") ? 1 : 0;
+        int tied = result.equals("TIE") ? 1 : 0;
         player.incrementGamesPlayed();
+        player.setGamesWon(player.getGamesWon() + won);
+        player.setGamesLost(player.getGamesLost() + lost);
+        player.setGamesTied(player.getGamesTied() + tied);
 
-        if (result.equals("WIN")) {
-            player.incrementGamesWon();
-        } else if (result.equals("LOSE")) {
-            player.incrementGamesLost();
-        } else if (result.equals("TIE")) {
-            player.incrementGamesTied();
-        }
+        addStats(player, 1, won, lost, tied);
+    }
 
-        update(player);
+    /**
+     * Add games to the statistics of a player. The counts are added to the stored ones
+     * by the database, so servers that record games of the same player at the same
+     * time do not overwrite each other's counts
+     */
+    public void addStats(PlayerEntity player, int played, int won, int lost, int tied) {
+        update(player, (conn, entity) -> {
+            PreparedStatement pstmt = conn.prepareStatement("UPDATE players SET games_played = games_played + ?, " +
+                    "games_won = games_won + ?, games_lost = games_lost + ?, games_tied = games_tied + ? WHERE id = ?");
+            pstmt.setInt(1, played);
+            pstmt.setInt(2, won);
+            pstmt.setInt(3, lost);
+            pstmt.setInt(4, tied);
+            pstmt.setInt(5, entity.getId());
+            return pstmt;
+        });
     }
 }
\ No newline at end of file
@@ -102,6 +102,35 @@ public class Board implements Serializable {
         return diag1Win || diag2Win;
     }
 
+    // packs the board into a long, 2 bits per cell in row order (0 empty, 1 X, 2 O).
+    // a 5x5 board needs 50 bits
+    public long pack() {
+        long packed = 0;
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                long cell = grid[i][j] == Utils.SYMBOL_X ? 1 : grid[i][j] == Utils.SYMBOL_O ? 2 : 0;
+                packed |= cell << (2 * (i * size + j));
+            }
+        }
+        return packed;
+    }
+
+    // creates a board from the value returned by pack
+    public static Board unpack(int size, long packed) {
+        Board board = new Board(size);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                long cell = (packed >>> (2 * (i * size + j))) & 3;
+                if (cell == 1) {
+                    board.grid[i][j] = Utils.SYMBOL_X;
+                } else if (cell == 2) {
+                    board.grid[i][j] = Utils.SYMBOL_O;
+                }
+            }
+        }
+        return board;
+    }
+
     public int getSize() {
         return size;
     }
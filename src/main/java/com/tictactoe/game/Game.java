@@ -22,6 +22,16 @@ public class Game implements Serializable {
         this.winner = null;
     }
 
+    // continues a game from a position on the board, the given player moves next
+    public Game(Board board, Player player1, Player player2, Player currentPlayer) {
+        this.board = board;
+        this.player1 = player1;
+        this.player2 = player2;
+        this.currentPlayer = currentPlayer;
+        this.gameOver = false;
+        this.winner = null;
+    }
+
     // checks if a move is valid
     public boolean isValidMove(int row, int col) {
         return !gameOver && board.isValidMove(row, col);
@@ -52,6 +62,14 @@ public class Game implements Serializable {
         }
     }
 
+    // ends the game with the other player as the winner (quit or timeout)
+    public void forfeit(Player loser) {
+        if (!gameOver) {
+            gameOver = true;
+            winner = (loser == player1) ? player2 : player1;
+        }
+    }
+
     // checks if the game is over
     public boolean isGameOver() {
         return gameOver;
@@ -0,0 +1,471 @@
+package com.tictactoe.protocol;
+
+import com.tictactoe.Utils;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// the binary encoding of a message: a two byte length, the message type and the
+// fields of the type in a fixed order. numbers are varints, symbols one byte and
+// strings a varint length followed by UTF-8. optional fields are announced by a
+// bit mask in front of the fields, types without optional fields have none.
+// a game id is sent as the id within its node, the node id only follows for a
+// cluster node other than 0. a MOVE_RESULT is 6 bytes plus its game id and the
+// length: 9 bytes on a server on its own for its first 63 games (the id takes a
+// second byte after that, a third after 8191), one more on a cluster node.
+// serialized it is more than 100.
+// keys a layout does not know are not sent
+public final class BinaryCodec {
+    // bytes in front of every message, holding the length of the rest
+    public static final int LENGTH_BYTES = 2;
+    public static final int MAX_LENGTH = 0xFFFF;
+
+    private enum Kind {
+        BYTE,       // Integer from 0 to 255
+        INT,        // Integer
+        LONG,       // Long
+        GAME_ID,    // Long, a session id with its node id in the high bits
+        BOOLEAN,    // Boolean
+        SYMBOL,     // one character String, X or O
+        STRING,     // String
+        STRINGS,    // String[]
+        INTS        // int[]
+    }
+
+    private static final class WireField {
+        private final Utils.Field field;
+        private final Kind kind;
+        private final boolean optional;
+
+        private WireField(Utils.Field field, Kind kind, boolean optional) {
+            this.field = field;
+            this.kind = kind;
+            this.optional = optional;
+        }
+    }
+
+    private static WireField required(Utils.Field field, Kind kind) {
+        return new WireField(field, kind, false);
+    }
+
+    private static WireField optional(Utils.Field field, Kind kind) {
+        return new WireField(field, kind, true);
+    }
+
+    private static final Utils.MessageType[] TYPES = Utils.MessageType.values();
+
+    // the fields of every message type, in wire order
+    private static final WireField[][] LAYOUTS = new WireField[TYPES.length][];
+
+    static {
+        Arrays.fill(LAYOUTS, new WireField[0]);
+        LAYOUTS[Utils.MessageType.LOGIN.ordinal()] = new WireField[] {
+                required(Utils.Field.PLAYER_NAME, Kind.STRING),
+                required(Utils.Field.BOARD_SIZE, Kind.BYTE),
+                optional(Utils.Field.MATCH_ID, Kind.STRING),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.WAIT.ordinal()] = new WireField[] {
+                required(Utils.Field.BOARD_SIZE, Kind.BYTE),
+                optional(Utils.Field.PLAYERS_MISSING, Kind.INT),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.GAME_START.ordinal()] = new WireField[] {
+                required(Utils.Field.GAME_ID, Kind.GAME_ID),
+                required(Utils.Field.BOARD_SIZE, Kind.BYTE),
+                required(Utils.Field.PLAYER_SYMBOL, Kind.SYMBOL),
+                required(Utils.Field.OPPONENT_NAME, Kind.STRING),
+                required(Utils.Field.OPPONENT_SYMBOL, Kind.SYMBOL),
+                required(Utils.Field.IS_YOUR_TURN, Kind.BOOLEAN),
+                optional(Utils.Field.TURN_TIMEOUT, Kind.LONG),
+                optional(Utils.Field.RESUME_TOKEN, Kind.STRING)};
+        LAYOUTS[Utils.MessageType.MOVE.ordinal()] = new WireField[] {
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                required(Utils.Field.ROW, Kind.BYTE),
+                required(Utils.Field.COL, Kind.BYTE),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        // the player to move by symbol, the name in NEXT_TURN is left out. the symbol
+        // of the move is not sent either, X makes the odd moves (see deriveFields)
+        LAYOUTS[Utils.MessageType.MOVE_RESULT.ordinal()] = new WireField[] {
+                required(Utils.Field.GAME_ID, Kind.GAME_ID),
+                required(Utils.Field.ROW, Kind.BYTE),
+                required(Utils.Field.COL, Kind.BYTE),
+                required(Utils.Field.NEXT_SYMBOL, Kind.SYMBOL),
+                required(Utils.Field.MOVE_SEQ, Kind.INT),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.GAME_OVER.ordinal()] = new WireField[] {
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                required(Utils.Field.RESULT, Kind.STRING),
+                optional(Utils.Field.WINNER, Kind.STRING),
+                required(Utils.Field.GAME_DURATION, Kind.LONG),
+                optional(Utils.Field.REASON, Kind.STRING)};
+        LAYOUTS[Utils.MessageType.ERROR.ordinal()] = new WireField[] {
+                required(Utils.Field.MESSAGE, Kind.STRING),
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.QUIT.ordinal()] = new WireField[] {
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.RESUME.ordinal()] = new WireField[] {
+                required(Utils.Field.RESUME_TOKEN, Kind.STRING),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        // players get their own symbol and opponent, spectators both names
+        LAYOUTS[Utils.MessageType.RESYNC.ordinal()] = new WireField[] {
+                required(Utils.Field.GAME_ID, Kind.GAME_ID),
+                required(Utils.Field.BOARD_SIZE, Kind.BYTE),
+                required(Utils.Field.BOARD, Kind.LONG),
+                required(Utils.Field.MOVE_SEQ, Kind.INT),
+                required(Utils.Field.NEXT_TURN, Kind.STRING),
+                optional(Utils.Field.PLAYER_SYMBOL, Kind.SYMBOL),
+                optional(Utils.Field.OPPONENT_NAME, Kind.STRING),
+                optional(Utils.Field.OPPONENT_SYMBOL, Kind.SYMBOL),
+                optional(Utils.Field.IS_YOUR_TURN, Kind.BOOLEAN),
+                optional(Utils.Field.PLAYER_X, Kind.STRING),
+                optional(Utils.Field.PLAYER_O, Kind.STRING),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.WATCH.ordinal()] = new WireField[] {
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.BUSY.ordinal()] = new WireField[] {
+                required(Utils.Field.RETRY_AFTER, Kind.LONG),
+                optional(Utils.Field.MESSAGE, Kind.STRING)};
+        LAYOUTS[Utils.MessageType.TOURNAMENT.ordinal()] = new WireField[] {
+                required(Utils.Field.PLAYER_NAME, Kind.STRING),
+                required(Utils.Field.BOARD_SIZE, Kind.BYTE),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.STANDINGS.ordinal()] = new WireField[] {
+                required(Utils.Field.TOURNAMENT_ID, Kind.LONG),
+                required(Utils.Field.ROUND, Kind.INT),
+                required(Utils.Field.ROUNDS, Kind.INT),
+                required(Utils.Field.FINAL, Kind.BOOLEAN),
+                required(Utils.Field.STANDINGS_NAMES, Kind.STRINGS),
+                required(Utils.Field.STANDINGS_POINTS, Kind.INTS),
+                required(Utils.Field.RANK, Kind.INT),
+                required(Utils.Field.POINTS, Kind.INT)};
+        LAYOUTS[Utils.MessageType.SYNC.ordinal()] = new WireField[] {
+                optional(Utils.Field.GAME_ID, Kind.GAME_ID),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.PING.ordinal()] = new WireField[] {
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.PONG.ordinal()] = new WireField[] {
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        // a request only names the player, the answer has the counts
+        LAYOUTS[Utils.MessageType.STATS.ordinal()] = new WireField[] {
+                required(Utils.Field.PLAYER_NAME, Kind.STRING),
+                optional(Utils.Field.GAMES_PLAYED, Kind.INT),
+                optional(Utils.Field.GAMES_WON, Kind.INT),
+                optional(Utils.Field.GAMES_LOST, Kind.INT),
+                optional(Utils.Field.GAMES_TIED, Kind.INT),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+        LAYOUTS[Utils.MessageType.HISTORY.ordinal()] = new WireField[] {
+                required(Utils.Field.PLAYER_NAME, Kind.STRING),
+                optional(Utils.Field.HISTORY_OPPONENTS, Kind.STRINGS),
+                optional(Utils.Field.HISTORY_RESULTS, Kind.STRINGS),
+                optional(Utils.Field.HISTORY_BOARD_SIZES, Kind.INTS),
+                optional(Utils.Field.REQUEST_ID, Kind.INT)};
+    }
+
+    private BinaryCodec() {
+    }
+
+    // encodes a message with its length in front, ready to be written as it is
+    public static byte[] encode(Utils.Message message) throws IOException {
+        Writer out = new Writer();
+        write(out, message);
+        return Arrays.copyOf(out.buffer, out.position);
+    }
+
+    // encodes into a buffer it keeps, for a writer that is done with every message
+    // before it encodes the next one. one per connection, not thread safe
+    public static final class Encoder {
+        private final Writer out = new Writer();
+
+        // encodes a message with its length in front into getBuffer, returns its size
+        public int encode(Utils.Message message) throws IOException {
+            write(out, message);
+            return out.position;
+        }
+
+        public byte[] getBuffer() {
+            return out.buffer;
+        }
+    }
+
+    // decodes into a message it keeps, for a reader that is done with every message
+    // before it decodes the next one. one per connection, not thread safe
+    public static final class Decoder {
+        private final Reader in = new Reader();
+        private final Utils.Message message = new Utils.Message(Utils.MessageType.PING);
+
+        // decodes the body of a message, the result is only valid until the next call
+        public Utils.Message decode(byte[] bytes, int offset, int length) throws IOException {
+            return read(in, bytes, offset, length, message);
+        }
+    }
+
+    private static void write(Writer out, Utils.Message message) throws IOException {
+        out.position = LENGTH_BYTES;
+        out.writeByte(message.getType().ordinal());
+
+        WireField[] layout = LAYOUTS[message.getType().ordinal()];
+        long present = 0;
+        int bit = 0;
+        boolean hasOptional = false;
+        for (WireField field : layout) {
+            if (field.optional) {
+                hasOptional = true;
+                if (message.has(field.field)) {
+                    present |= 1L << bit;
+                }
+                bit++;
+            }
+        }
+        if (hasOptional) {
+            out.writeVarLong(present);
+        }
+
+        for (WireField field : layout) {
+            if (!message.has(field.field)) {
+                if (field.optional) {
+                    continue;
+                }
+                throw new IOException(message.getType() + " without " + field.field);
+            }
+            writeValue(out, message, field);
+        }
+
+        int length = out.position - LENGTH_BYTES;
+        if (length > MAX_LENGTH) {
+            throw new IOException(message.getType() + " is too long: " + length + " bytes");
+        }
+        out.buffer[0] = (byte) (length >>> 8);
+        out.buffer[1] = (byte) length;
+    }
+
+    // decodes the bytes after the length of a message
+    public static Utils.Message decode(byte[] bytes, int offset, int length) throws IOException {
+        return read(new Reader(), bytes, offset, length, null);
+    }
+
+    // decodes into the given message, or a new one if it is null
+    private static Utils.Message read(Reader in, byte[] bytes, int offset, int length, Utils.Message message)
+            throws IOException {
+        in.reset(bytes, offset, offset + length);
+        int typeIndex = in.readByte();
+        if (typeIndex >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown message type: " + typeIndex);
+        }
+        if (message == null) {
+            message = new Utils.Message(TYPES[typeIndex]);
+        } else {
+            message.reset(TYPES[typeIndex]);
+        }
+
+        WireField[] layout = LAYOUTS[typeIndex];
+        long present = -1;
+        for (WireField field : layout) {
+            if (field.optional) {
+                present = in.readVarLong();
+                break;
+            }
+        }
+
+        int bit = 0;
+        for (WireField field : layout) {
+            if (field.optional && (present & (1L << bit++)) == 0) {
+                continue;
+            }
+            readValue(in, message, field);
+        }
+        if (in.position != in.end) {
+            throw new StreamCorruptedException("Trailing bytes in " + message.getType());
+        }
+        deriveFields(message);
+        return message;
+    }
+
+    // fills in what a layout leaves out because the other fields imply it
+    private static void deriveFields(Utils.Message message) {
+        if (message.getType() == Utils.MessageType.MOVE_RESULT) {
+            // X always moves first, so the sequence number of a move tells who made it
+            message.set(Utils.Field.SYMBOL,
+                    message.getInt(Utils.Field.MOVE_SEQ) % 2 == 1 ? Utils.SYMBOL_X : Utils.SYMBOL_O);
+        }
+    }
+
+    private static void writeValue(Writer out, Utils.Message message, WireField wireField) {
+        Utils.Field field = wireField.field;
+        switch (wireField.kind) {
+            case BYTE:
+                out.writeByte(message.getInt(field));
+                break;
+            case INT:
+                out.writeVarLong(message.getInt(field) & 0xFFFFFFFFL);
+                break;
+            case LONG:
+                out.writeVarLong(message.getLong(field));
+                break;
+            case GAME_ID:
+                // the id within the node, shifted to say whether the node id follows
+                long id = message.getLong(field);
+                long node = id >>> Utils.NODE_ID_SHIFT;
+                long local = id & ((1L << Utils.NODE_ID_SHIFT) - 1);
+                if (node == 0) {
+                    out.writeVarLong(local << 1);
+                } else {
+                    out.writeVarLong(local << 1 | 1);
+                    out.writeVarLong(node);
+                }
+                break;
+            case BOOLEAN:
+                out.writeByte(message.getBoolean(field) ? 1 : 0);
+                break;
+            case SYMBOL:
+                out.writeByte(message.getSymbol(field));
+                break;
+            case STRING:
+                out.writeString(message.getString(field));
+                break;
+            case STRINGS:
+                String[] strings = message.getStrings(field);
+                out.writeVarLong(strings.length);
+                for (String string : strings) {
+                    out.writeString(string);
+                }
+                break;
+            case INTS:
+                int[] ints = message.getInts(field);
+                out.writeVarLong(ints.length);
+                for (int i : ints) {
+                    out.writeVarLong(i & 0xFFFFFFFFL);
+                }
+                break;
+        }
+    }
+
+    private static void readValue(Reader in, Utils.Message message, WireField wireField) throws IOException {
+        Utils.Field field = wireField.field;
+        switch (wireField.kind) {
+            case BYTE:
+                message.set(field, in.readByte());
+                break;
+            case INT:
+                message.set(field, (int) in.readVarLong());
+                break;
+            case LONG:
+                message.set(field, in.readVarLong());
+                break;
+            case GAME_ID:
+                long local = in.readVarLong();
+                long node = (local & 1) != 0 ? in.readVarLong() : 0;
+                message.set(field, node << Utils.NODE_ID_SHIFT | local >>> 1);
+                break;
+            case BOOLEAN:
+                message.set(field, in.readByte() != 0);
+                break;
+            case SYMBOL:
+                message.set(field, (char) in.readByte());
+                break;
+            case STRING:
+                message.set(field, in.readString());
+                break;
+            case STRINGS:
+                String[] strings = new String[in.readCount()];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = in.readString();
+                }
+                message.set(field, strings);
+                break;
+            case INTS:
+                int[] ints = new int[in.readCount()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = (int) in.readVarLong();
+                }
+                message.set(field, ints);
+                break;
+        }
+    }
+
+    // appends to a growing array, most messages fit the first one
+    private static final class Writer {
+        private byte[] buffer = new byte[32];
+        private int position;
+
+        private void ensure(int bytes) {
+            if (position + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + bytes));
+            }
+        }
+
+        private void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        // seven bits per byte, the high bit says more bytes follow
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+    }
+
+    // reads one message, never past its end
+    private static final class Reader {
+        private byte[] buffer;
+        private int position;
+        private int end;
+
+        private void reset(byte[] buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        private int readByte() throws IOException {
+            if (position >= end) {
+                throw new StreamCorruptedException("Message ends early");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Varint is too long");
+        }
+
+        // a length or count, which can never be more than the bytes left
+        private int readCount() throws IOException {
+            long count = readVarLong();
+            if (count > end - position) {
+                throw new StreamCorruptedException("Bad length: " + count);
+            }
+            return (int) count;
+        }
+
+        private String readString() throws IOException {
+            int length = readCount();
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
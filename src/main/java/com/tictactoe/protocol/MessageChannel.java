@@ -0,0 +1,264 @@
+package com.tictactoe.protocol;
+
+import com.tictactoe.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.Arrays;
+
+// reads and writes messages on a socket in the protocol agreed when it was opened.
+// a connection in frame mode (a spectator after WATCH) gets pre-encoded frames:
+// legacy frames are a serialized stream of their own behind an int length,
+// binary frames are ordinary binary messages. one thread reads, writers synchronize
+public abstract class MessageChannel {
+    // an object stream remembers every object it wrote, and the peer every object
+    // it read, so both can send back references. a reset every this many
+    // messages clears the tables on both sides; the next message after it
+    // carries its class descriptions again
+    public static final int LEGACY_RESET_INTERVAL = 256;
+
+    // server side: the first bytes of the client choose the protocol. nothing is
+    // written before, legacy clients send their stream header before they read
+    public static MessageChannel accept(Socket socket) throws IOException {
+        return accept(socket, new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    // server side, writing to the given stream instead of the socket, for a server
+    // that queues the bytes and sends them from a thread of its own
+    public static MessageChannel accept(Socket socket, OutputStream output) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+        in.mark(Protocol.PREAMBLE.length);
+        byte[] start = new byte[Protocol.PREAMBLE.length];
+        new DataInputStream(in).readFully(start, 0, 2);
+
+        if (((start[0] & 0xFF) << 8 | (start[1] & 0xFF)) == Protocol.STREAM_MAGIC) {
+            in.reset();
+            ObjectOutputStream out = new ObjectOutputStream(output);
+            out.flush();
+            return new Legacy(new ObjectInputStream(in), out);
+        }
+
+        new DataInputStream(in).readFully(start, 2, start.length - 2);
+        if (!Arrays.equals(start, Protocol.PREAMBLE)) {
+            throw new StreamCorruptedException("Unknown protocol");
+        }
+        DataOutputStream out = new DataOutputStream(output);
+        out.write(Protocol.PREAMBLE);
+        out.flush();
+        return new Binary(new DataInputStream(in), out);
+    }
+
+    // client side. a server that only speaks LEGACY answers a BINARY preamble with
+    // its stream header, then this throws ProtocolException and the client should
+    // connect again with LEGACY
+    public static MessageChannel connect(Socket socket, Protocol protocol) throws IOException {
+        if (protocol == Protocol.LEGACY) {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            return new Legacy(new ObjectInputStream(new BufferedInputStream(socket.getInputStream())), out);
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.write(Protocol.PREAMBLE);
+        out.flush();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        byte[] answer = new byte[Protocol.PREAMBLE.length];
+        in.readFully(answer);
+        if (!Arrays.equals(answer, Protocol.PREAMBLE)) {
+            throw new ProtocolException("Server does not speak " + protocol);
+        }
+        return new Binary(in, out);
+    }
+
+    public abstract Protocol getProtocol();
+
+    // reads the next message
+    public abstract Utils.Message read() throws IOException;
+
+    // reads the next message into a message the channel keeps, it is only valid
+    // until the next read. for a reader that is done with every message before it
+    // reads on and does not hand it to other threads. legacy reads always return a new one
+    public abstract Utils.Message readReused() throws IOException;
+
+    // writes a message and flushes it
+    public void write(Utils.Message message) throws IOException {
+        append(message);
+        flush();
+    }
+
+    // writes a message into the send buffer, flush() sends everything appended
+    // since the last flush with one write to the socket
+    public abstract void append(Utils.Message message) throws IOException;
+
+    public abstract void flush() throws IOException;
+
+    // reads the bytes of the next frame as they were written
+    public abstract byte[] readFrameBytes() throws IOException;
+
+    // writes a frame from Protocol.encodeFrame of this channel's protocol and flushes it
+    public abstract void writeFrame(byte[] frame) throws IOException;
+
+    // reads the next frame as a message
+    public Utils.Message readFrame() throws IOException {
+        byte[] frame = readFrameBytes();
+        if (getProtocol() == Protocol.BINARY) {
+            return BinaryCodec.decode(frame, BinaryCodec.LENGTH_BYTES, frame.length - BinaryCodec.LENGTH_BYTES);
+        }
+        try {
+            return Utils.decodeFrame(frame);
+        } catch (ClassNotFoundException e) {
+            throw new StreamCorruptedException("Unknown class in frame: " + e.getMessage());
+        }
+    }
+
+    public abstract void close() throws IOException;
+
+    private static final class Legacy extends MessageChannel {
+        private final ObjectInputStream in;
+        private final ObjectOutputStream out;
+        private int writesSinceReset;
+
+        private Legacy(ObjectInputStream in, ObjectOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return Protocol.LEGACY;
+        }
+
+        @Override
+        public Utils.Message read() throws IOException {
+            try {
+                return (Utils.Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new StreamCorruptedException("Not a message: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public Utils.Message readReused() throws IOException {
+            return read();
+        }
+
+        // unshared, a message object the sender reuses would otherwise be written
+        // as a back reference to its first contents
+        @Override
+        public void append(Utils.Message message) throws IOException {
+            out.writeUnshared(message);
+            if (++writesSinceReset >= LEGACY_RESET_INTERVAL) {
+                out.reset();
+                writesSinceReset = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public byte[] readFrameBytes() throws IOException {
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            return frame;
+        }
+
+        @Override
+        public void writeFrame(byte[] frame) throws IOException {
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            out.close();
+        }
+    }
+
+    private static final class Binary extends MessageChannel {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        // kept between messages, one thread reads and writers synchronize
+        private final BinaryCodec.Encoder encoder = new BinaryCodec.Encoder();
+        private final BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+        private byte[] readBuffer = new byte[256];
+
+        private Binary(DataInputStream in, DataOutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public Protocol getProtocol() {
+            return Protocol.BINARY;
+        }
+
+        @Override
+        public Utils.Message read() throws IOException {
+            int length = readBody();
+            return BinaryCodec.decode(readBuffer, 0, length);
+        }
+
+        @Override
+        public Utils.Message readReused() throws IOException {
+            int length = readBody();
+            return decoder.decode(readBuffer, 0, length);
+        }
+
+        // reads the next message after its length into readBuffer, returns the length
+        private int readBody() throws IOException {
+            int length = in.readUnsignedShort();
+            if (length > readBuffer.length) {
+                readBuffer = new byte[Math.max(length, readBuffer.length * 2)];
+            }
+            in.readFully(readBuffer, 0, length);
+            return length;
+        }
+
+        @Override
+        public void append(Utils.Message message) throws IOException {
+            int length = encoder.encode(message);
+            out.write(encoder.getBuffer(), 0, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public byte[] readFrameBytes() throws IOException {
+            int length = in.readUnsignedShort();
+            byte[] frame = new byte[BinaryCodec.LENGTH_BYTES + length];
+            frame[0] = (byte) (length >>> 8);
+            frame[1] = (byte) length;
+            in.readFully(frame, BinaryCodec.LENGTH_BYTES, length);
+            return frame;
+        }
+
+        @Override
+        public void writeFrame(byte[] frame) throws IOException {
+            out.write(frame);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.tictactoe.protocol;
+
+import com.tictactoe.Utils;
+
+import java.io.IOException;
+
+// the wire formats a connection can speak, chosen when it is opened
+public enum Protocol {
+    LEGACY,     // Java serialization of Utils.Message, spoken by every client
+    BINARY;     // length prefixed fixed layouts, see BinaryCodec
+
+    // a client that wants BINARY opens the connection with these bytes, the server
+    // answers with the same bytes. a serialization stream starts with 0xACED instead
+    static final byte[] PREAMBLE = {'T', 'T', 'T', 1};
+    static final int STREAM_MAGIC = 0xACED;
+
+    // encodes a message once, so the same bytes can be written to many spectators of this protocol
+    public byte[] encodeFrame(Utils.Message message) throws IOException {
+        return this == BINARY ? BinaryCodec.encode(message) : Utils.encodeFrame(message);
+    }
+}
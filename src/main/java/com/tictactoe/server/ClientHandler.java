@@ -2,57 +2,124 @@ package com.tictactoe.server;
 
 import com.tictactoe.Utils;
 import com.tictactoe.game.Player;
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class ClientHandler implements Runnable {
     private Socket clientSocket;
-    private ObjectInputStream inputStream;
-    private ObjectOutputStream outputStream;
+    // null until the client chose its protocol
+    private volatile MessageChannel channel;
     private Server server;
 
-    private Player player;
-    private GameSession gameSession;
-    private boolean running;
-    private int requestedBoardSize;
+    // everything for the client is encoded into this bounded buffer and written by the
+    // connection's own writer thread, so a session never waits for a socket: messages,
+    // or frames once the client watches. a client that falls too far behind is disconnected.
+    // senders hold its lock while they encode, the channel's encoder is not thread safe
+    private final Outbox outbox;
+    // when the current write started, 0 while nothing is written. a peer that stops
+    // reading blocks its writer, the idle check closes it after the write timeout
+    private volatile long writeStartNanos;
+    private long writeTimeoutNanos;
+
+    // a connection may play many games at once, client messages name theirs by GAME_ID
+    private Map<Long, GameSession> gameSessions;
+    // set by the first LOGIN or RESUME, the connection may wait for opponents from then on
+    private volatile boolean playing;
+    private volatile boolean running;
+
+    // time of the last message from the client, checked by the idle reaper
+    private volatile long lastActivity;
+    private long idleTimeoutNanos;
+    private volatile TimingWheel.Timeout idleTimeout;
+
+    // once a client watches a game it only gets frames
+    private volatile boolean watching;
+    private volatile GameSession watchedSession;
+
+    // messages over the per-type rate limit are dropped, too many of them close the connection
+    private RateLimiter rateLimiter;
+
+    // REQUEST_ID of the message being processed, 0 if it has none. only the handler
+    // thread uses it, replies and errors sent from here carry it back
+    private int requestId;
 
     // create a new client handler
     public ClientHandler(Socket clientSocket, Server server) {
         this.clientSocket = clientSocket;
         this.server = server;
         this.running = true;
+        this.gameSessions = new ConcurrentHashMap<>();
+        this.lastActivity = System.nanoTime();
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("connection.idleTimeoutMs", 45000));
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("connection.writeTimeoutMs", 10000));
+        this.outbox = new Outbox(ServerConfig.getInt("connection.outboundBytes", 65536));
+        this.rateLimiter = new RateLimiter();
+    }
 
+    // run the client handler
+    @Override
+    public void run() {
         try {
-            // create streams for communication with the client
-            this.outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-            this.inputStream = new ObjectInputStream(clientSocket.getInputStream());
-        } catch (IOException e) {
+            // a dead peer must not block a read forever
+            clientSocket.setSoTimeout(ServerConfig.getInt("connection.readTimeoutMs", 60000));
+
+            // the first bytes of the client choose the protocol, waiting for them is
+            // done here and not on the accept thread. the answer waits in the outbox
+            this.channel = MessageChannel.accept(clientSocket, outbox);
+            server.getWriterPool().execute(this::writeOutbox);
+        } catch (IOException | RejectedExecutionException e) {
             System.err.println("Error creating streams: " + e.getMessage());
             closeConnection();
+            server.clientDisconnected(this);
+            return;
         }
-    }
 
-    // run the client handler
-    @Override
-    public void run() {
+        scheduleIdleCheck(idleTimeoutNanos);
         try {
             while (running) {
-                // read message from client
-                Utils.Message message = (Utils.Message) inputStream.readObject();
+                // read message from client, the handlers below only take values out of it
+                Utils.Message message = channel.readReused();
+                lastActivity = System.nanoTime();
+                requestId = message.has(Utils.Field.REQUEST_ID) ? message.getInt(Utils.Field.REQUEST_ID) : 0;
+                if (!rateLimiter.tryAcquire(message.getType())) {
+                    rejectMessage(message);
+                    continue;
+                }
                 processMessage(message);
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (SocketTimeoutException e) {
+            System.err.println("Client read timed out: " + e.getMessage());
+            server.getMetrics().readTimedOut();
+        } catch (IOException e) {
             System.err.println("Error handling client: " + e.getMessage());
         } finally {
             // clean up
-            if (player != null && gameSession == null) {
-                // if player was waiting but did not got matched
-                server.removeWaitingPlayer(this, requestedBoardSize);
+            if (idleTimeout != null) {
+                idleTimeout.cancel();
+            }
+            if (playing) {
+                // logins that did not get matched and tournaments that did not start yet
+                server.removeWaitingPlayer(this);
+                server.getTournamentScheduler().unregister(this);
+            }
+            for (GameSession gameSession : gameSessions.values()) {
+                // keep the seat for a while, the client may come back with its resume token
+                gameSession.submitDisconnect(this);
+            }
+            if (watchedSession != null) {
+                watchedSession.submitUnwatch(this);
             }
             closeConnection();
+            server.clientDisconnected(this);
         }
     }
 
@@ -65,18 +132,52 @@ public class ClientHandler implements Runnable {
             case MOVE:
                 handleMove(message);
                 break;
+            case RESUME:
+                handleResume(message);
+                break;
+            case TOURNAMENT:
+                handleTournament(message);
+                break;
+            case WATCH:
+                handleWatch(message);
+                break;
+            case SYNC:
+                handleSync(message);
+                break;
+            case STATS:
+            case HISTORY:
+                handleQuery(message);
+                break;
+            case PING:
+                sendMessage(withRequestId(new Utils.Message(Utils.MessageType.PONG)));
+                break;
+            case PONG:
+                // only keeps the connection alive
+                break;
             case QUIT:
-                running = false;
+                handleQuit(message);
                 break;
             default:
                 sendError("Unsupported message type: " + message.getType());
         }
     }
 
-    // handle login message from client
+    // drops a message over the rate limit, a client that keeps flooding is disconnected
+    private void rejectMessage(Utils.Message message) {
+        server.getMetrics().messageRejected(message.getType());
+        if (rateLimiter.violated()) {
+            System.out.println("Disconnecting flooding client: " + clientSocket.getInetAddress().getHostAddress());
+            server.getMetrics().floodDisconnected();
+            running = false;
+            return;
+        }
+        sendError("Too many " + message.getType() + " messages, slow down");
+    }
+
+    // handle login message from client, every login is a request for one more game
     private void handleLogin(Utils.Message message) {
-        String playerName = (String) message.getData(Utils.Keys.PLAYER_NAME);
-        int boardSize = (int) message.getData(Utils.Keys.BOARD_SIZE);
+        String playerName = message.getString(Utils.Field.PLAYER_NAME);
+        int boardSize = message.getInt(Utils.Field.BOARD_SIZE);
 
         // check board size
         if (boardSize != Utils.BOARD_SIZE_3X3 &&
@@ -85,10 +186,31 @@ public class ClientHandler implements Runnable {
             sendError("Invalid board size: " + boardSize);
             return;
         }
+        if (!Utils.isValidName(playerName)) {
+            sendError("Name too long, at most " + Utils.MAX_NAME_BYTES + " bytes");
+            return;
+        }
+
+        // a draining server starts no new games, the client should connect to another one
+        if (server.isDraining()) {
+            sendError("Server is shutting down, please reconnect");
+            return;
+        }
+
+        if (watching) {
+            sendError("Cannot play while watching");
+            return;
+        }
 
         // create player
-        this.player = new Player(playerName);
-        this.requestedBoardSize = boardSize;
+        Player player = new Player(playerName);
+        this.playing = true;
+
+        // a cluster gateway already chose the opponent, the client got WAIT from the gateway
+        if (message.has(Utils.Field.MATCH_ID)) {
+            server.joinMatch(this, player, boardSize, message.getString(Utils.Field.MATCH_ID));
+            return;
+        }
 
         // try to match with another player
         boolean matched = server.matchPlayer(this, player, boardSize);
@@ -96,67 +218,324 @@ public class ClientHandler implements Runnable {
         if (!matched) {
             // send waiting message to client
             Utils.Message waitMessage = new Utils.Message(Utils.MessageType.WAIT);
-            waitMessage.setData(Utils.Keys.BOARD_SIZE, boardSize);
-            sendMessage(waitMessage);
+            waitMessage.set(Utils.Field.BOARD_SIZE, boardSize);
+            sendMessage(withRequestId(waitMessage));
+        }
+    }
+
+    // registers the player for the next tournament, its games arrive as GAME_START
+    // messages and the table after every round as STANDINGS
+    private void handleTournament(Utils.Message message) {
+        String playerName = message.getString(Utils.Field.PLAYER_NAME);
+        int boardSize = message.getInt(Utils.Field.BOARD_SIZE);
+        if (boardSize != Utils.BOARD_SIZE_3X3 &&
+                boardSize != Utils.BOARD_SIZE_4X4 &&
+                boardSize != Utils.BOARD_SIZE_5X5) {
+            sendError("Invalid board size: " + boardSize);
+            return;
+        }
+        if (!Utils.isValidName(playerName)) {
+            sendError("Name too long, at most " + Utils.MAX_NAME_BYTES + " bytes");
+            return;
+        }
+        if (server.isDraining() || watching) {
+            sendError("Cannot join a tournament now");
+            return;
+        }
+
+        this.playing = true;
+        int missing = server.getTournamentScheduler().register(this, playerName, boardSize);
+        if (missing == TournamentScheduler.ALREADY_REGISTERED) {
+            sendError("Already registered for a tournament");
+        } else if (missing > 0) {
+            Utils.Message waitMessage = new Utils.Message(Utils.MessageType.WAIT);
+            waitMessage.set(Utils.Field.BOARD_SIZE, boardSize);
+            waitMessage.set(Utils.Field.PLAYERS_MISSING, missing);
+            sendMessage(withRequestId(waitMessage));
         }
     }
 
     // handles move message from client
     private void handleMove(Utils.Message message) {
-        if (gameSession == null || player == null) {
-            sendError("Game not started yet");
+        GameSession gameSession = findGameSession(message);
+        if (gameSession == null) {
             return;
         }
 
-        int row = (int) message.getData(Utils.Keys.ROW);
-        int col = (int) message.getData(Utils.Keys.COL);
+        int row = message.getInt(Utils.Field.ROW);
+        int col = message.getInt(Utils.Field.COL);
 
-        // try to make the move
-        boolean moveResult = gameSession.makeMove(player, row, col);
+        // the session validates the move on its own thread and replies with an error if invalid
+        gameSession.submitMove(this, row, col, requestId);
+    }
 
-        if (!moveResult) {
-            // send error if move was invalid
-            Utils.Message errorMessage = new Utils.Message(Utils.MessageType.ERROR);
-            errorMessage.setData(Utils.Keys.MESSAGE, "Invalid move");
-            sendMessage(errorMessage);
+    // the client lost track of a game, the session answers with its state
+    private void handleSync(Utils.Message message) {
+        GameSession gameSession = findGameSession(message);
+        if (gameSession != null) {
+            gameSession.submitSync(this, requestId);
         }
     }
 
+    // a statistics or history query, answered from the database on the query pool
+    // while this connection goes on with its next messages
+    private void handleQuery(Utils.Message message) {
+        PlayerQueries playerQueries = server.getPlayerQueries();
+        if (playerQueries == null) {
+            sendError("Statistics are not available");
+            return;
+        }
+        String playerName = message.getString(Utils.Field.PLAYER_NAME);
+        if (message.getType() == Utils.MessageType.STATS) {
+            playerQueries.submitStats(this, playerName, requestId);
+        } else {
+            playerQueries.submitHistory(this, playerName, requestId);
+        }
+    }
+
+    // QUIT with a GAME_ID leaves that game, without one the client leaves all games and disconnects
+    private void handleQuit(Utils.Message message) {
+        if (message.has(Utils.Field.GAME_ID)) {
+            GameSession gameSession = findGameSession(message);
+            if (gameSession != null) {
+                gameSession.submitQuit(this);
+            }
+            return;
+        }
+        for (GameSession gameSession : gameSessions.values()) {
+            gameSession.submitQuit(this);
+        }
+        running = false;
+    }
+
+    // the game a client message is about: the one named by GAME_ID, or the only game
+    // of the connection for clients that play one game at a time. sends an error if none
+    private GameSession findGameSession(Utils.Message message) {
+        GameSession gameSession = null;
+        if (message.has(Utils.Field.GAME_ID)) {
+            gameSession = gameSessions.get(message.getLong(Utils.Field.GAME_ID));
+        } else if (gameSessions.size() == 1) {
+            gameSession = gameSessions.values().iterator().next();
+        }
+        if (gameSession == null) {
+            sendError(gameSessions.isEmpty() ? "Game not started yet" : "Unknown game");
+        }
+        return gameSession;
+    }
+
+    // handles a client that comes back to a game on a new connection
+    private void handleResume(Utils.Message message) {
+        if (watching) {
+            sendError("Cannot play while watching");
+            return;
+        }
+
+        String token = message.getString(Utils.Field.RESUME_TOKEN);
+        GameSession session = server.findSessionByToken(token);
+        if (session == null) {
+            sendError("Cannot resume game");
+            return;
+        }
+        if (gameSessions.putIfAbsent(session.getId(), session) != null) {
+            sendError("Already playing this game");
+            return;
+        }
+
+        // the session answers with the current state of the game
+        this.playing = true;
+        session.submitResume(this, token, requestId);
+    }
+
+    // handles a client that wants to watch a live game
+    private void handleWatch(Utils.Message message) {
+        if (playing || watchedSession != null) {
+            sendError("Cannot watch while playing or watching");
+            return;
+        }
+
+        // looked up first, the error can still be sent as a message
+        long gameId = message.getLong(Utils.Field.GAME_ID);
+        GameSession session = server.findSession(gameId);
+        if (session == null) {
+            sendError("Game not found: " + gameId);
+            return;
+        }
+
+        // the WATCH answer is the last object on this stream, everything after it is a frame
+        if (!watching) {
+            sendMessage(withRequestId(new Utils.Message(Utils.MessageType.WATCH)));
+            watching = true;
+        }
+        watchedSession = session;
+        session.submitWatch(this, requestId);
+    }
+
     // send error message to the client
     private void sendError(String errorMessage) {
         Utils.Message error = new Utils.Message(Utils.MessageType.ERROR);
-        error.setData(Utils.Keys.MESSAGE, errorMessage);
-        sendMessage(error);
+        error.set(Utils.Field.MESSAGE, errorMessage);
+        sendMessage(withRequestId(error));
     }
 
-    // send message to the client
+    // the reply to the message being processed carries its request id
+    private Utils.Message withRequestId(Utils.Message reply) {
+        if (requestId != 0) {
+            reply.set(Utils.Field.REQUEST_ID, requestId);
+        }
+        return reply;
+    }
+
+    // queues a message for the client, sessions and the handler thread may call this
+    // concurrently. it never blocks, and the message is encoded before it returns, so
+    // the caller may reuse it. the writer thread sends it
     public void sendMessage(Utils.Message message) {
+        MessageChannel channel = this.channel;
+        if (channel == null) {
+            // the protocol is not chosen yet
+            return;
+        }
+        if (watching) {
+            // a spectator connection only carries frames
+            try {
+                offerFrame(channel.getProtocol().encodeFrame(message));
+            } catch (IOException e) {
+                System.err.println("Error encoding message: " + e.getMessage());
+            }
+            return;
+        }
+
+        synchronized (outbox) {
+            try {
+                channel.write(message);
+                server.getMetrics().messageWritten();
+            } catch (IOException e) {
+                System.err.println("Error encoding message: " + e.getMessage());
+            }
+        }
+        if (outbox.isFull()) {
+            System.out.println("Disconnecting slow client: " + clientSocket.getInetAddress().getHostAddress());
+            server.getMetrics().playerDropped();
+            reap();
+        }
+    }
+
+    // queues a pre-serialized frame for this spectator without blocking the caller,
+    // returns false if the spectator is too far behind
+    public boolean offerFrame(byte[] frame) {
+        synchronized (outbox) {
+            try {
+                channel.writeFrame(frame);
+            } catch (IOException e) {
+                System.err.println("Error encoding frame: " + e.getMessage());
+            }
+        }
+        if (!outbox.isFull()) {
+            return true;
+        }
+        System.out.println("Disconnecting slow spectator: " + clientSocket.getInetAddress().getHostAddress());
+        server.getMetrics().spectatorDropped();
+        reap();
+        return false;
+    }
+
+    // the wire format of this connection, frames for it must be encoded in it
+    public Protocol getProtocol() {
+        return channel.getProtocol();
+    }
+
+    // the writer thread of this connection: sends what the outbox collected with one
+    // write, however many messages were queued since the last one. ends once the
+    // outbox is closed and empty, or the socket failed
+    private void writeOutbox() {
         try {
-            outputStream.writeObject(message);
-            outputStream.flush();
+            OutputStream out = clientSocket.getOutputStream();
+            int length;
+            while ((length = outbox.take()) > 0) {
+                writeStartNanos = System.nanoTime();
+                out.write(outbox.getTaken(), 0, length);
+                writeStartNanos = 0;
+                server.getMetrics().socketFlushed();
+            }
         } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-            running = false;
+            if (!clientSocket.isClosed()) {
+                System.err.println("Error sending message: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the reader notices the closed socket and cleans up
+        reap();
+    }
+
+    // arms the idle check, only one check per connection is pending at a time
+    private void scheduleIdleCheck(long delayNanos) {
+        idleTimeout = server.getTimingWheel().schedule(this::checkIdle, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // runs on the timing wheel thread, closes the connection if the client went silent
+    // or stopped reading what the server writes
+    private void checkIdle() {
+        if (!running) {
+            return;
+        }
+        long now = System.nanoTime();
+        long idle = now - lastActivity;
+        long writeStart = writeStartNanos;
+        if (idle >= idleTimeoutNanos) {
+            System.out.println("Closing idle connection: " + clientSocket.getInetAddress().getHostAddress());
+            server.getMetrics().connectionReaped();
+            reap();
+        } else if (writeStart != 0 && now - writeStart >= writeTimeoutNanos) {
+            System.out.println("Closing connection that does not read: " + clientSocket.getInetAddress().getHostAddress());
+            server.getMetrics().writeTimedOut();
+            reap();
+        } else {
+            scheduleIdleCheck(Math.min(idleTimeoutNanos - idle, writeTimeoutNanos));
+        }
+    }
+
+    // tells the client the server is going away and closes the connection
+    public void closeForShutdown() {
+        // not an answer to a request, this runs on the drain thread
+        Utils.Message error = new Utils.Message(Utils.MessageType.ERROR);
+        error.set(Utils.Field.MESSAGE, "Server is shutting down, please reconnect");
+        sendMessage(error);
+        // closed by the writer once the error is out
+        outbox.close();
+    }
+
+    // closes only the socket, the handler thread then fails its read and cleans up
+    // (frees the waiting slot or leaves the game). closing the streams here could
+    // block on a flush to the dead peer
+    private void reap() {
+        running = false;
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
         }
     }
 
-    // close the connection with the client
+    // close the connection with the client. the socket goes first, it wakes up a writer
+    // blocked on it; what is still queued for the client is lost
     private void closeConnection() {
         running = false;
         try {
-            if (inputStream != null) inputStream.close();
-            if (outputStream != null) outputStream.close();
             if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
+            outbox.close();
+            if (channel != null) channel.close();
         } catch (IOException e) {
             System.err.println("Error closing connection: " + e.getMessage());
         }
     }
 
-    public void setGameSession(GameSession gameSession) {
-        this.gameSession = gameSession;
+    // called when a game of this connection starts
+    public void addGameSession(GameSession gameSession) {
+        gameSessions.put(gameSession.getId(), gameSession);
     }
 
-    public Player getPlayer() {
-        return player;
+    // called by a session when its game is over
+    public void removeGameSession(GameSession gameSession) {
+        gameSessions.remove(gameSession.getId(), gameSession);
     }
 }
\ No newline at end of file
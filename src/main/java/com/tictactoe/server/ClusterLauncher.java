@@ -0,0 +1,59 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+// runs a whole cluster on one machine: every node is its own JVM process and the
+// gateway runs in this process. usage: ClusterLauncher [nodeCount] [firstNodePort]
+public class ClusterLauncher {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+        int firstPort = args.length > 1 ? Integer.parseInt(args[1]) : ServerConfig.getInt("cluster.firstNodePort", 1301);
+
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            int port = firstPort + i;
+            processes.add(startNode(i, port));
+            nodes.add(InetSocketAddress.createUnresolved("localhost", port));
+        }
+
+        // the node processes die with the launcher
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroy)));
+
+        // give the nodes time to open their ports
+        Thread.sleep(ServerConfig.getLong("cluster.startupDelayMs", 2000));
+
+        Gateway gateway = new Gateway(ServerConfig.getInt("gateway.port", Utils.SERVER_PORT), nodes);
+        gateway.start();
+    }
+
+    // starts a node in a new JVM with the same class path or module path as this one
+    private static Process startNode(int nodeId, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-Dserver.port=" + port);
+        command.add("-Dserver.nodeId=" + nodeId);
+
+        String modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null) {
+            command.add("-p");
+            command.add(modulePath);
+            command.add("-m");
+            command.add("com.tictactoe/" + Server.class.getName());
+        } else {
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Server.class.getName());
+        }
+
+        System.out.println("Starting node " + nodeId + " on port " + port);
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+}
@@ -0,0 +1,176 @@
+package com.tictactoe.server;
+
+import com.tictactoe.db.BaseDB;
+import com.tictactoe.db.DatabaseConfig;
+import com.tictactoe.db.GameDB;
+import com.tictactoe.db.PlayerDB;
+import com.tictactoe.db.model.GameEntity;
+import com.tictactoe.db.model.PlayerEntity;
+import com.tictactoe.game.GameResult;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// write-behind persistence of finished games. sessions only put the result on a
+// bounded queue, a background writer stores the results in batches, one
+// transaction per batch for its games and the statistics they add. a slow or
+// unreachable database therefore never delays a game; when the queue is full
+// results are dropped and counted
+public class GameRecorder {
+    // a finished game waiting to be written
+    private static class FinishedGame {
+        private final String player1Name;
+        private final String player2Name;
+        // 1 or 2 for the winning player, 0 for a tie
+        private final int winner;
+        private final int boardSize;
+        private final long duration;
+        private final Date playedAt;
+
+        private FinishedGame(String player1Name, String player2Name, int winner, int boardSize, long duration) {
+            this.player1Name = player1Name;
+            this.player2Name = player2Name;
+            this.winner = winner;
+            this.boardSize = boardSize;
+            this.duration = duration;
+            this.playedAt = new Date();
+        }
+    }
+
+    // what one batch adds to the statistics of a player
+    private static class StatsDelta {
+        private final PlayerEntity player;
+        private int played;
+        private int won;
+        private int lost;
+        private int tied;
+
+        private StatsDelta(PlayerEntity player) {
+            this.player = player;
+        }
+    }
+
+    private final BlockingQueue<FinishedGame> queue;
+    private final int batchSize;
+    private final ServerMetrics metrics;
+    private volatile boolean running;
+    private Thread writer;
+
+    public GameRecorder(ServerMetrics metrics) {
+        this.queue = new ArrayBlockingQueue<>(ServerConfig.getInt("persistence.queueSize", 10000));
+        this.batchSize = ServerConfig.getInt("persistence.batchSize", 100);
+        this.metrics = metrics;
+    }
+
+    // starts the writer, the database is set up on the writer thread so the server starts without waiting for it
+    public void start() {
+        running = true;
+        writer = new Thread(this::writeLoop, "game-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // queues a finished game without blocking, called on the session thread
+    public void record(String player1Name, String player2Name, int winner, int boardSize, long duration) {
+        if (queue.offer(new FinishedGame(player1Name, player2Name, winner, boardSize, duration))) {
+            metrics.gameQueuedForPersistence(queue.size());
+        } else {
+            metrics.gamePersistenceDropped();
+        }
+    }
+
+    private void writeLoop() {
+        DatabaseConfig.init();
+        BaseDB.initDatabase();
+
+        List<FinishedGame> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                FinishedGame first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // stop() interrupts a poll, what is left is written by the next turns of the loop
+            } catch (RuntimeException e) {
+                System.err.println("Error writing game results: " + e.getMessage());
+                metrics.gamesPersistenceFailed(batch.size());
+            }
+            batch.clear();
+        }
+    }
+
+    // writes one batch. players are looked up once per batch by name and their
+    // statistics are updated once, however many of the games they played. the
+    // update adds to the stored counts, other nodes may record the same players
+    private void writeBatch(List<FinishedGame> batch) {
+        // new DB objects per batch, a failed batch must not stay in their change log
+        PlayerDB playerDB = new PlayerDB();
+        GameDB gameDB = new GameDB();
+        Map<String, StatsDelta> players = new HashMap<>();
+
+        for (FinishedGame finished : batch) {
+            StatsDelta player1 = players.computeIfAbsent(finished.player1Name,
+                    name -> new StatsDelta(playerDB.getOrCreateByName(name)));
+            StatsDelta player2 = players.computeIfAbsent(finished.player2Name,
+                    name -> new StatsDelta(playerDB.getOrCreateByName(name)));
+
+            GameEntity game = new GameEntity();
+            game.setPlayer1(player1.player);
+            game.setPlayer2(player2.player);
+            game.setBoardSize(finished.boardSize);
+            game.setDuration(finished.duration);
+            game.setPlayedAt(finished.playedAt);
+            player1.played++;
+            player2.played++;
+            if (finished.winner == 0) {
+                game.setResult(GameResult.Result.TIE.toString());
+                player1.tied++;
+                player2.tied++;
+            } else {
+                game.setResult(GameResult.Result.WIN.toString());
+                game.setWinner(finished.winner == 1 ? player1.player : player2.player);
+                (finished.winner == 1 ? player1 : player2).won++;
+                (finished.winner == 1 ? player2 : player1).lost++;
+            }
+            gameDB.insert(game);
+        }
+
+        for (StatsDelta delta : players.values()) {
+            playerDB.addStats(delta.player, delta.played, delta.won, delta.lost, delta.tied);
+        }
+        // games and statistics commit together, a failure between them would store games
+        // whose statistics are never added. the change log reports errors itself
+        if (BaseDB.saveAll(gameDB, playerDB)) {
+            metrics.gamesPersisted(batch.size());
+        } else {
+            metrics.gamesPersistenceFailed(batch.size());
+        }
+    }
+
+    // writes what is queued and stops the writer, waits at most timeoutMs
+    public void stop(long timeoutMs) {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        writer.interrupt();
+        try {
+            writer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.err.println(queue.size() + " game results were not written");
+        }
+    }
+}
@@ -3,24 +3,163 @@ package com.tictactoe.server;
 import com.tictactoe.Utils;
 import com.tictactoe.game.Player;
 import com.tictactoe.game.Game;
+import com.tictactoe.protocol.Protocol;
 
-public class GameSession {
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// a game between two players. all game state is owned by the session mailbox,
+// so commands are processed one at a time without locks
+public class GameSession implements Mailbox.Handler<GameSession.Command> {
+    // types of commands a session can process
+    public enum CommandType {
+        START,      // the game starts and the first clock begins
+        MOVE,       // a player makes a move
+        QUIT,       // a player leaves the game
+        TIMEOUT,    // the player to move ran out of time
+        DISCONNECT, // a player lost the connection and may resume
+        RESUME,     // a player came back on a new connection
+        ABANDON,    // a player did not come back within the grace window
+        WATCH,      // a spectator starts watching
+        SYNC,       // a player missed a move and wants the state of the game
+        UNWATCH,    // a spectator left
+        SHUTDOWN,   // the server is going away before the game could finish
+        RECOVER     // the game was restored from the write-ahead log after a restart
+    }
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Protocol[] PROTOCOLS = Protocol.values();
+
+    // told when the game is over, e.g. by a tournament
+    public interface EndListener {
+        // winner is the winning seat (1 or 2) or 0 for a tie, runs on the session thread
+        void gameEnded(long sessionId, int winner);
+    }
+
+    // a command waiting in the session mailbox
+    public static class Command {
+        private final CommandType type;
+        private final ClientHandler sender;
+        private final int row;
+        private final int col;
+        // player slot for RESUME, disconnect id for ABANDON
+        private final int value;
+        // REQUEST_ID of the client message, 0 if it had none
+        private final int requestId;
+
+        public Command(CommandType type, ClientHandler sender, int row, int col, int value) {
+            this(type, sender, row, col, value, 0);
+        }
+
+        public Command(CommandType type, ClientHandler sender, int row, int col, int value, int requestId) {
+            this.type = type;
+            this.sender = sender;
+            this.row = row;
+            this.col = col;
+            this.value = value;
+            this.requestId = requestId;
+        }
+    }
+
+    private long id;
+    private Server server;
     private Game game;
     private Player player1;
     private Player player2;
     private ClientHandler player1Handler;
     private ClientHandler player2Handler;
+    private Mailbox<Command> mailbox;
+    private TimingWheel timingWheel;
+    // null when the server runs without a write-ahead log
+    private WriteAheadLog writeAheadLog;
 
     private long startTime;
     private boolean isGameOver;
 
+    // server side clocks, measured with System.nanoTime
+    private long turnTimeoutNanos;
+    private long player1TimeLeft;
+    private long player2TimeLeft;
+    private long turnStartNanos;
+    private long turnDeadlineNanos;
+    private int moveCount;
+    // the turn timer is only moved when a deadline comes earlier than the armed one,
+    // a timer that fires too early is armed again for the rest of the turn
+    private TimingWheel.Timeout turnTimeout;
+    private long armedDeadlineNanos;
+    private final Runnable turnTimeoutTask = this::submitTimeout;
+
+    // resume state, a handler is null while its player is disconnected
+    private String player1Token;
+    private String player2Token;
+    private long resumeGraceNanos;
+    private int disconnectCount;
+    private int player1DisconnectId;
+    private int player2DisconnectId;
+    private TimingWheel.Timeout player1Grace;
+    private TimingWheel.Timeout player2Grace;
+
+    // spectators, they get every update as one shared pre-serialized frame
+    private List<ClientHandler> watchers;
+    // null for a game that is not part of anything bigger
+    private EndListener endListener;
+    // null when finished games are not stored
+    private GameRecorder gameRecorder;
+    // every move reuses one MOVE_RESULT, the connections encode it before send returns
+    private final Utils.Message moveResult = new Utils.Message(Utils.MessageType.MOVE_RESULT);
+
     // creates a new game session
     public GameSession(int boardSize, Player player1, Player player2, ClientHandler player1Handler,
-                       ClientHandler player2Handler) {
+                       ClientHandler player2Handler, Server server) {
+        this(server.nextSessionId(), boardSize, player1, player2, player1Handler, player2Handler, server,
+                createToken(server.getNodeId()), createToken(server.getNodeId()));
+    }
+
+    // restores a game from the write-ahead log, both seats stay empty until the players resume
+    public GameSession(WriteAheadLog.RecoveredSession recovered, Server server) {
+        this(recovered.getId(), recovered.getBoardSize(), new Player(recovered.getPlayer1Name()),
+                new Player(recovered.getPlayer2Name()), null, null, server,
+                recovered.getPlayer1Token(), recovered.getPlayer2Token());
+        this.startTime = recovered.getStartTime();
+        for (int[] move : recovered.getMoves()) {
+            game.makeMove(move[0], move[1]);
+        }
+        this.moveCount = recovered.getMoves().size();
+        if (recovered.getPlayer1TimeLeft() >= 0) {
+            this.player1TimeLeft = recovered.getPlayer1TimeLeft();
+        }
+        if (recovered.getPlayer2TimeLeft() >= 0) {
+            this.player2TimeLeft = recovered.getPlayer2TimeLeft();
+        }
+    }
+
+    private GameSession(long id, int boardSize, Player player1, Player player2, ClientHandler player1Handler,
+                        ClientHandler player2Handler, Server server, String player1Token, String player2Token) {
+        this.id = id;
+        this.server = server;
         this.player1 = player1;
         this.player2 = player2;
         this.player1Handler = player1Handler;
         this.player2Handler = player2Handler;
+        this.mailbox = new Mailbox<>(server.getSessionPool(), this);
+        this.timingWheel = server.getTimingWheel();
+        this.writeAheadLog = server.getWriteAheadLog();
+        this.gameRecorder = server.getGameRecorder();
+
+        // every player gets the same thinking time for the match
+        this.turnTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("turn.timeoutMs", 30000));
+        this.player1TimeLeft = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("match.timeoutMs", 300000));
+        this.player2TimeLeft = player1TimeLeft;
+
+        this.player1Token = player1Token;
+        this.player2Token = player2Token;
+        this.watchers = new ArrayList<>();
+        this.resumeGraceNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLong("session.resumeGraceMs", 30000));
 
         // assign symbols
         player1.setSymbol(Utils.SYMBOL_X);
@@ -33,75 +172,594 @@ public class GameSession {
 
     // start the game session
     public void start() {
+        mailbox.post(new Command(CommandType.START, null, -1, -1, 0));
+    }
+
+    // sends GAME_START to both players and starts the clock of the first player
+    private void handleStart() {
         System.out.println("Starting game session between " + player1.getName() + " and " + player2.getName());
 
         startTime = System.currentTimeMillis();
+        if (writeAheadLog != null) {
+            writeAheadLog.logCreate(id, game.getBoardSize(), startTime, player1.getName(), player2.getName(),
+                    player1Token, player2Token);
+        }
 
         // create GAME_START message for player 1
         Utils.Message player1Message = new Utils.Message(Utils.MessageType.GAME_START);
-        player1Message.setData(Utils.Keys.PLAYER_SYMBOL, String.valueOf(player1.getSymbol()));
-        player1Message.setData(Utils.Keys.OPPONENT_NAME, player2.getName());
-        player1Message.setData(Utils.Keys.OPPONENT_SYMBOL, String.valueOf(player2.getSymbol()));
-        player1Message.setData(Utils.Keys.BOARD_SIZE, game.getBoardSize());
-        player1Message.setData(Utils.Keys.IS_YOUR_TURN, true);
+        player1Message.set(Utils.Field.PLAYER_SYMBOL, player1.getSymbol());
+        player1Message.set(Utils.Field.OPPONENT_NAME, player2.getName());
+        player1Message.set(Utils.Field.OPPONENT_SYMBOL, player2.getSymbol());
+        player1Message.set(Utils.Field.BOARD_SIZE, game.getBoardSize());
+        player1Message.set(Utils.Field.IS_YOUR_TURN, true);
+        player1Message.set(Utils.Field.TURN_TIMEOUT, TimeUnit.NANOSECONDS.toMillis(turnTimeoutNanos));
+        player1Message.set(Utils.Field.GAME_ID, id);
+        player1Message.set(Utils.Field.RESUME_TOKEN, player1Token);
 
         // create GAME_START message for player 2
         Utils.Message player2Message = new Utils.Message(Utils.MessageType.GAME_START);
-        player2Message.setData(Utils.Keys.PLAYER_SYMBOL, String.valueOf(player2.getSymbol()));
-        player2Message.setData(Utils.Keys.OPPONENT_NAME, player1.getName());
-        player2Message.setData(Utils.Keys.OPPONENT_SYMBOL, String.valueOf(player1.getSymbol()));
-        player2Message.setData(Utils.Keys.BOARD_SIZE, game.getBoardSize());
-        player2Message.setData(Utils.Keys.IS_YOUR_TURN, false);
+        player2Message.set(Utils.Field.PLAYER_SYMBOL, player2.getSymbol());
+        player2Message.set(Utils.Field.OPPONENT_NAME, player1.getName());
+        player2Message.set(Utils.Field.OPPONENT_SYMBOL, player1.getSymbol());
+        player2Message.set(Utils.Field.BOARD_SIZE, game.getBoardSize());
+        player2Message.set(Utils.Field.IS_YOUR_TURN, false);
+        player2Message.set(Utils.Field.TURN_TIMEOUT, TimeUnit.NANOSECONDS.toMillis(turnTimeoutNanos));
+        player2Message.set(Utils.Field.GAME_ID, id);
+        player2Message.set(Utils.Field.RESUME_TOKEN, player2Token);
+
+        send(player1Handler, player1Message);
+        send(player2Handler, player2Message);
 
-        player1Handler.sendMessage(player1Message);
-        player2Handler.sendMessage(player2Message);
+        startTurnClock(System.nanoTime());
     }
 
-    // processes a move from a player
-    public synchronized boolean makeMove(Player player, int row, int col) {
-        if (isGameOver || !game.isPlayerTurn(player) || !game.isValidMove(row, col)) {
+    // queues the start of a restored game
+    public void recover() {
+        mailbox.post(new Command(CommandType.RECOVER, null, -1, -1, 0));
+    }
+
+    // a restored game goes on where the log ended: the clock of the player to move
+    // restarts (the downtime is not charged) and both players get the resume window
+    private void handleRecover() {
+        if (game.isGameOver()) {
+            // the server died between the last move and the end of the game
+            endGame(null);
+            return;
+        }
+        System.out.println("Recovered game " + id + " between " + player1.getName() + " and " +
+                player2.getName() + " after " + moveCount + " moves, waiting for resume");
+        startTurnClock(System.nanoTime());
+        // one disconnect for both seats, so the grace timer that fires knows whether
+        // the other player is missing as well
+        int disconnectId = ++disconnectCount;
+        detach(player1, disconnectId);
+        detach(player2, disconnectId);
+    }
+
+    // queues a move from a player
+    public void submitMove(ClientHandler sender, int row, int col, int requestId) {
+        mailbox.post(new Command(CommandType.MOVE, sender, row, col, 0, requestId));
+    }
+
+    // queues a player leaving the game
+    public void submitQuit(ClientHandler sender) {
+        mailbox.post(new Command(CommandType.QUIT, sender, -1, -1, 0));
+    }
+
+    // queues a check of the turn clock, called from the timing wheel thread
+    public void submitTimeout() {
+        mailbox.post(new Command(CommandType.TIMEOUT, null, -1, -1, 0));
+    }
+
+    // queues a lost connection, the player keeps the seat for the grace window
+    public void submitDisconnect(ClientHandler sender) {
+        mailbox.post(new Command(CommandType.DISCONNECT, sender, -1, -1, 0));
+    }
+
+    // queues a new connection taking over the seat that owns the token,
+    // returns false if the token does not belong to this session
+    public boolean submitResume(ClientHandler sender, String token, int requestId) {
+        int slot = getSlot(token);
+        if (slot == 0) {
             return false;
         }
+        mailbox.post(new Command(CommandType.RESUME, sender, -1, -1, slot, requestId));
+        return true;
+    }
+
+    // queues a request for the state of the game
+    public void submitSync(ClientHandler sender, int requestId) {
+        mailbox.post(new Command(CommandType.SYNC, sender, -1, -1, 0, requestId));
+    }
+
+    // queues a new spectator
+    public void submitWatch(ClientHandler sender, int requestId) {
+        mailbox.post(new Command(CommandType.WATCH, sender, -1, -1, 0, requestId));
+    }
 
-        // make the move
+    // queues a spectator leaving
+    public void submitUnwatch(ClientHandler sender) {
+        mailbox.post(new Command(CommandType.UNWATCH, sender, -1, -1, 0));
+    }
+
+    // queues ending the game because the server shuts down
+    public void submitShutdown() {
+        mailbox.post(new Command(CommandType.SHUTDOWN, null, -1, -1, 0));
+    }
+
+    // processes a command from the mailbox, always on a single thread
+    @Override
+    public void handle(Command command) {
+        switch (command.type) {
+            case START:
+                handleStart();
+                break;
+            case MOVE:
+                handleMove(command.sender, command.row, command.col, command.requestId);
+                break;
+            case QUIT:
+                handleQuit(command.sender);
+                break;
+            case TIMEOUT:
+                handleTimeout();
+                break;
+            case DISCONNECT:
+                handleDisconnect(command.sender);
+                break;
+            case RESUME:
+                handleResume(command.sender, command.value, command.requestId);
+                break;
+            case ABANDON:
+                handleAbandon(command.value);
+                break;
+            case WATCH:
+                handleWatch(command.sender, command.requestId);
+                break;
+            case SYNC:
+                handleSync(command.sender, command.requestId);
+                break;
+            case UNWATCH:
+                watchers.remove(command.sender);
+                break;
+            case RECOVER:
+                handleRecover();
+                break;
+            case SHUTDOWN:
+                // nobody wins a game the server did not let finish, it goes on after the restart
+                if (!isGameOver) {
+                    abort();
+                }
+                break;
+        }
+    }
+
+    // processes a move from a player
+    private void handleMove(ClientHandler sender, int row, int col, int requestId) {
+        Player player = getPlayer(sender);
+        if (isGameOver || player == null || !game.isPlayerTurn(player) || !game.isValidMove(row, col)) {
+            sendError(sender, "Invalid move", requestId);
+            return;
+        }
+
+        // a move that arrives after the deadline loses, even if the timer has not fired yet
+        long now = System.nanoTime();
+        if (!chargeTurn(player, now)) {
+            game.forfeit(player);
+            endGame("timeout");
+            return;
+        }
+
+        // make the move, it is logged before anybody hears about it
         game.makeMove(row, col);
+        moveCount++;
+        if (writeAheadLog != null) {
+            writeAheadLog.logMove(id, moveCount, row, col, getTimeLeft(player));
+        }
 
         // send MOVE_RESULT to both players
-        Utils.Message moveMessage = new Utils.Message(Utils.MessageType.MOVE_RESULT);
-        moveMessage.setData(Utils.Keys.ROW, row);
-        moveMessage.setData(Utils.Keys.COL, col);
-        moveMessage.setData(Utils.Keys.SYMBOL, String.valueOf(player.getSymbol()));
-        moveMessage.setData(Utils.Keys.NEXT_TURN, game.getCurrentPlayer().getName());
-
-        player1Handler.sendMessage(moveMessage);
-        player2Handler.sendMessage(moveMessage);
+        Utils.Message moveMessage = moveResult(player, row, col);
+        // the request id is only for the player that moved
+        if (requestId != 0) {
+            moveMessage.set(Utils.Field.REQUEST_ID, requestId);
+            send(sender, moveMessage);
+            moveMessage.remove(Utils.Field.REQUEST_ID);
+        } else {
+            send(sender, moveMessage);
+        }
+        send(sender == player1Handler ? player2Handler : player1Handler, moveMessage);
+        broadcast(moveMessage);
 
         // check if the game is over
         if (game.isGameOver()) {
-            isGameOver = true;
-            long gameDuration = System.currentTimeMillis() - startTime;
-            endGame(gameDuration);
+            endGame(null);
+        } else {
+            startTurnClock(now);
         }
+    }
+
+    // the player leaving loses the game
+    private void handleQuit(ClientHandler sender) {
+        Player player = getPlayer(sender);
+        if (isGameOver || player == null) {
+            return;
+        }
+        game.forfeit(player);
+        endGame("quit");
+    }
+
+    // the player to move loses the game on time
+    private void handleTimeout() {
+        if (isGameOver) {
+            return;
+        }
+        // the timer was armed for an earlier turn, or a move came in after it fired
+        long now = System.nanoTime();
+        if (now < turnDeadlineNanos) {
+            armTurnTimer(now);
+            return;
+        }
+        game.forfeit(game.getCurrentPlayer());
+        endGame("timeout");
+    }
+
+    // keeps the seat free for the player to resume, the clock keeps running
+    private void handleDisconnect(ClientHandler sender) {
+        Player player = getPlayer(sender);
+        if (isGameOver || player == null) {
+            return;
+        }
+        System.out.println(player.getName() + " disconnected from game " + id + ", waiting for resume");
+        detach(player);
+    }
 
+    // frees the seat of a player and arms the grace timer, the player loses if it does not resume in time
+    private void detach(Player player) {
+        detach(player, ++disconnectCount);
+    }
+
+    private void detach(Player player, int disconnectId) {
+        TimingWheel.Timeout grace = timingWheel.schedule(
+                () -> mailbox.post(new Command(CommandType.ABANDON, null, -1, -1, disconnectId)),
+                resumeGraceNanos, TimeUnit.NANOSECONDS);
+        if (player == player1) {
+            player1Handler = null;
+            player1DisconnectId = disconnectId;
+            player1Grace = grace;
+        } else {
+            player2Handler = null;
+            player2DisconnectId = disconnectId;
+            player2Grace = grace;
+        }
+    }
+
+    // attaches a new connection to a seat and sends it the current state
+    private void handleResume(ClientHandler sender, int slot, int requestId) {
+        if (isGameOver) {
+            sender.removeGameSession(this);
+            sendError(sender, "Game is already over", requestId);
+            return;
+        }
+
+        // the old connection may not be noticed as dead yet, its disconnect is ignored later
+        ClientHandler previous = slot == 1 ? player1Handler : player2Handler;
+        if (previous != null && previous != sender) {
+            previous.removeGameSession(this);
+        }
+        if (slot == 1) {
+            cancelTimeout(player1Grace);
+            player1Handler = sender;
+        } else {
+            cancelTimeout(player2Grace);
+            player2Handler = sender;
+        }
+        System.out.println(getPlayer(sender).getName() + " resumed game " + id);
+        send(sender, createResync(getPlayer(sender), requestId));
+    }
+
+    // sends the state of the game to a player that missed a move. MOVE_SEQ of the
+    // RESYNC is the last move it contains, later MOVE_RESULTs follow it
+    private void handleSync(ClientHandler sender, int requestId) {
+        Player player = getPlayer(sender);
+        if (player == null) {
+            return;
+        }
+        if (isGameOver) {
+            sendError(sender, "Game is already over", requestId);
+            return;
+        }
+        send(sender, createResync(player, requestId));
+    }
+
+    // the player did not come back in time and loses the game
+    private void handleAbandon(int disconnectId) {
+        if (isGameOver) {
+            return;
+        }
+        boolean player1Missing = player1Handler == null && player1DisconnectId == disconnectId;
+        boolean player2Missing = player2Handler == null && player2DisconnectId == disconnectId;
+        if (player1Missing && player2Missing) {
+            // neither player came back to a recovered game, nobody wins it
+        } else if (player1Missing) {
+            game.forfeit(player1);
+        } else if (player2Missing) {
+            game.forfeit(player2);
+        } else {
+            // the player resumed in the meantime
+            return;
+        }
+        endGame("abandoned");
+    }
+
+    // adds a spectator and sends it the current state
+    private void handleWatch(ClientHandler sender, int requestId) {
+        if (isGameOver) {
+            sendError(sender, "Game is already over", requestId);
+            return;
+        }
+
+        Utils.Message message = new Utils.Message(Utils.MessageType.RESYNC);
+        message.set(Utils.Field.GAME_ID, id);
+        message.set(Utils.Field.BOARD_SIZE, game.getBoardSize());
+        message.set(Utils.Field.BOARD, game.getBoard().pack());
+        message.set(Utils.Field.MOVE_SEQ, moveCount);
+        message.set(Utils.Field.PLAYER_X, player1.getName());
+        message.set(Utils.Field.PLAYER_O, player2.getName());
+        message.set(Utils.Field.NEXT_TURN, game.getCurrentPlayer().getName());
+        if (requestId != 0) {
+            message.set(Utils.Field.REQUEST_ID, requestId);
+        }
+        watchers.add(sender);
+        sender.sendMessage(message);
+    }
+
+    // serializes a message once per protocol and queues the same bytes for every
+    // spectator. queueing never blocks, spectators that are too far behind are dropped
+    private void broadcast(Utils.Message message) {
+        if (watchers.isEmpty()) {
+            return;
+        }
+
+        byte[][] frames = new byte[PROTOCOLS.length][];
+        Iterator<ClientHandler> iterator = watchers.iterator();
+        while (iterator.hasNext()) {
+            ClientHandler watcher = iterator.next();
+            int protocol = watcher.getProtocol().ordinal();
+            if (frames[protocol] == null) {
+                try {
+                    frames[protocol] = PROTOCOLS[protocol].encodeFrame(message);
+                } catch (IOException e) {
+                    System.err.println("Error encoding frame: " + e.getMessage());
+                    return;
+                }
+            }
+            if (!watcher.offerFrame(frames[protocol])) {
+                iterator.remove();
+            }
+        }
+        server.getMetrics().spectatorFramesQueued(watchers.size());
+    }
+
+    // the whole state of the game as seen by the given player
+    private Utils.Message createResync(Player player, int requestId) {
+        Player opponent = player == player1 ? player2 : player1;
+        Utils.Message message = new Utils.Message(Utils.MessageType.RESYNC);
+        message.set(Utils.Field.GAME_ID, id);
+        message.set(Utils.Field.BOARD_SIZE, game.getBoardSize());
+        message.set(Utils.Field.BOARD, game.getBoard().pack());
+        message.set(Utils.Field.MOVE_SEQ, moveCount);
+        message.set(Utils.Field.PLAYER_SYMBOL, player.getSymbol());
+        message.set(Utils.Field.OPPONENT_NAME, opponent.getName());
+        message.set(Utils.Field.OPPONENT_SYMBOL, opponent.getSymbol());
+        message.set(Utils.Field.IS_YOUR_TURN, game.isPlayerTurn(player));
+        message.set(Utils.Field.NEXT_TURN, game.getCurrentPlayer().getName());
+        if (requestId != 0) {
+            message.set(Utils.Field.REQUEST_ID, requestId);
+        }
+        return message;
+    }
+
+    // starts the clock of the player to move, the deadline is the turn limit or
+    // what is left of the player's match time, whichever comes first. a timer that
+    // is still armed is kept if it fires before the deadline, handleTimeout moves it on
+    private void startTurnClock(long now) {
+        turnStartNanos = now;
+        turnDeadlineNanos = now + Math.min(turnTimeoutNanos, getTimeLeft(game.getCurrentPlayer()));
+        if (turnTimeout == null || turnTimeout.isExpired() || armedDeadlineNanos > turnDeadlineNanos) {
+            armTurnTimer(now);
+        }
+    }
+
+    private void armTurnTimer(long now) {
+        cancelTimeout(turnTimeout);
+        armedDeadlineNanos = turnDeadlineNanos;
+        turnTimeout = timingWheel.schedule(turnTimeoutTask, turnDeadlineNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    // subtracts the time used on this turn from the player's match time,
+    // returns false if the player ran out of time
+    private boolean chargeTurn(Player player, long now) {
+        long elapsed = now - turnStartNanos;
+        if (elapsed > turnTimeoutNanos || elapsed > getTimeLeft(player)) {
+            return false;
+        }
+        if (player == player1) {
+            player1TimeLeft -= elapsed;
+        } else {
+            player2TimeLeft -= elapsed;
+        }
         return true;
     }
 
+    private long getTimeLeft(Player player) {
+        return player == player1 ? player1TimeLeft : player2TimeLeft;
+    }
+
+    // stops the game without ending it: the write-ahead log keeps it open and nothing is
+    // recorded, so the restarted server recovers it and the players come back with RESUME
+    private void abort() {
+        isGameOver = true;
+        cancelTimeout(turnTimeout);
+        cancelTimeout(player1Grace);
+        cancelTimeout(player2Grace);
+
+        Utils.Message gameOverMessage = new Utils.Message(Utils.MessageType.GAME_OVER);
+        gameOverMessage.set(Utils.Field.GAME_ID, id);
+        gameOverMessage.set(Utils.Field.GAME_DURATION, System.currentTimeMillis() - startTime);
+        gameOverMessage.set(Utils.Field.RESULT, "aborted");
+        gameOverMessage.set(Utils.Field.REASON, "shutdown");
+        send(player1Handler, gameOverMessage);
+        send(player2Handler, gameOverMessage);
+        broadcast(gameOverMessage);
+        watchers.clear();
+
+        if (player1Handler != null) {
+            player1Handler.removeGameSession(this);
+        }
+        if (player2Handler != null) {
+            player2Handler.removeGameSession(this);
+        }
+        server.sessionEnded(this);
+    }
+
     // end the game and notifies both players
-    private void endGame(long gameDuration) {
+    private void endGame(String reason) {
+        isGameOver = true;
+        if (writeAheadLog != null) {
+            writeAheadLog.logEnd(id);
+        }
+        cancelTimeout(turnTimeout);
+        cancelTimeout(player1Grace);
+        cancelTimeout(player2Grace);
+        long gameDuration = System.currentTimeMillis() - startTime;
+
         Utils.Message gameOverMessage = new Utils.Message(Utils.MessageType.GAME_OVER);
-        gameOverMessage.setData(Utils.Keys.GAME_DURATION, gameDuration);
+        gameOverMessage.set(Utils.Field.GAME_ID, id);
+        gameOverMessage.set(Utils.Field.GAME_DURATION, gameDuration);
+        if (reason != null) {
+            gameOverMessage.set(Utils.Field.REASON, reason);
+        }
 
         Player winner = game.getWinner();
         if (winner != null) {
-            gameOverMessage.setData(Utils.Keys.RESULT, "win");
-            gameOverMessage.setData(Utils.Keys.WINNER, winner.getName());
+            gameOverMessage.set(Utils.Field.RESULT, "win");
+            gameOverMessage.set(Utils.Field.WINNER, winner.getName());
         }
         else {
-            gameOverMessage.setData(Utils.Keys.RESULT, "tie");
+            gameOverMessage.set(Utils.Field.RESULT, "tie");
         }
 
-        player1Handler.sendMessage(gameOverMessage);
-        player2Handler.sendMessage(gameOverMessage);
+        send(player1Handler, gameOverMessage);
+        send(player2Handler, gameOverMessage);
+        broadcast(gameOverMessage);
+        watchers.clear();
+
+        if (player1Handler != null) {
+            player1Handler.removeGameSession(this);
+        }
+        if (player2Handler != null) {
+            player2Handler.removeGameSession(this);
+        }
+
+        server.sessionEnded(this);
+        int winnerSeat = winner == player1 ? 1 : winner == player2 ? 2 : 0;
+        // only queued here, the database is written by the recorder thread
+        if (gameRecorder != null) {
+            gameRecorder.record(player1.getName(), player2.getName(), winnerSeat, game.getBoardSize(), gameDuration);
+        }
+        if (endListener != null) {
+            endListener.gameEnded(id, winnerSeat);
+        }
+    }
+
+    // the MOVE_RESULT for the move the player just made, in the message every move reuses
+    private Utils.Message moveResult(Player player, int row, int col) {
+        Utils.Message message = moveResult;
+        message.reset(Utils.MessageType.MOVE_RESULT);
+        message.set(Utils.Field.GAME_ID, id);
+        message.set(Utils.Field.ROW, row);
+        message.set(Utils.Field.COL, col);
+        message.set(Utils.Field.SYMBOL, player.getSymbol());
+        message.set(Utils.Field.NEXT_TURN, game.getCurrentPlayer().getName());
+        message.set(Utils.Field.NEXT_SYMBOL, game.getCurrentPlayer().getSymbol());
+        message.set(Utils.Field.MOVE_SEQ, moveCount);
+        return message;
+    }
+
+    // sends a message unless the player is disconnected. it only queues the encoded
+    // message, the connection's writer sends it
+    private void send(ClientHandler handler, Utils.Message message) {
+        if (handler != null) {
+            handler.sendMessage(message);
+        }
+    }
+
+    // sends an error about this game, the GAME_ID tells a client with many games which
+    // one, the REQUEST_ID (unless 0) which of its requests failed
+    private void sendError(ClientHandler handler, String errorMessage, int requestId) {
+        Utils.Message error = new Utils.Message(Utils.MessageType.ERROR);
+        error.set(Utils.Field.GAME_ID, id);
+        error.set(Utils.Field.MESSAGE, errorMessage);
+        if (requestId != 0) {
+            error.set(Utils.Field.REQUEST_ID, requestId);
+        }
+        send(handler, error);
+    }
+
+    private void cancelTimeout(TimingWheel.Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    // the node id followed by 128 random bits, hard to guess for anybody that did not get GAME_START
+    private static String createToken(int nodeId) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return nodeId + ":" + HexFormat.of().formatHex(bytes);
+    }
+
+    // gets the node that owns a resume token, -1 if the token is malformed
+    public static int getNodeOfToken(String token) {
+        int separator = token == null ? -1 : token.indexOf(':');
+        if (separator <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(token.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // gets the seat (1 or 2) that owns the resume token, 0 if none
+    private int getSlot(String token) {
+        if (player1Token.equals(token)) {
+            return 1;
+        }
+        if (player2Token.equals(token)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    // gets the player that owns the resume token, tokens never change so any thread may call this
+    public Player getPlayer(String token) {
+        int slot = getSlot(token);
+        return slot == 1 ? player1 : slot == 2 ? player2 : null;
+    }
+
+    // gets the player that plays on the given connection
+    private Player getPlayer(ClientHandler handler) {
+        if (handler == null) {
+            return null;
+        }
+        if (handler == player1Handler) {
+            return player1;
+        }
+        if (handler == player2Handler) {
+            return player2;
+        }
+        return null;
     }
 
     // checks if it is the given player turn
@@ -109,7 +767,24 @@ public class GameSession {
         return game.isPlayerTurn(player);
     }
 
+    // must be set before the session starts
+    public void setEndListener(EndListener endListener) {
+        this.endListener = endListener;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getPlayer1Token() {
+        return player1Token;
+    }
+
+    public String getPlayer2Token() {
+        return player2Token;
+    }
+
     public Game getGame() {
         return game;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,554 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+import com.tictactoe.protocol.MessageChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// front door of a server cluster. clients connect to the gateway as if it was a
+// single server. matchmaking happens here, across all nodes; once two players are
+// paired the game is placed on the least loaded node and each player's connection
+// gets a relay to it, one per game. session ids and resume tokens carry the node id, so RESUME and
+// WATCH are routed without any state shared between nodes
+public class Gateway {
+    private int port;
+    private List<InetSocketAddress> nodes;
+    private AtomicInteger[] activeConnections;
+    // tournaments are not split across nodes, they all run on this one
+    private int tournamentNode;
+
+    private Listener listener;
+    private volatile boolean running;
+    private ExecutorService threadPool;
+    // LOGINs waiting for an opponent, by board size
+    private Map<Integer, Deque<Waiting>> waitingPlayers;
+    private AtomicLong nextMatchId;
+    // a node link that sent nothing for this long gets a PING with the client's next one
+    private static final long LINK_PING_NANOS = TimeUnit.MILLISECONDS.toNanos(Utils.HEARTBEAT_INTERVAL_MS);
+
+    // creates a gateway in front of the given nodes, node i must run with server.nodeId=i
+    public Gateway(int port, List<InetSocketAddress> nodes) {
+        this.port = port;
+        this.nodes = nodes;
+        this.activeConnections = new AtomicInteger[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            activeConnections[i] = new AtomicInteger();
+        }
+        this.threadPool = Executors.newCachedThreadPool();
+        this.waitingPlayers = new HashMap<>();
+        this.nextMatchId = new AtomicLong(1);
+        this.tournamentNode = ServerConfig.getInt("cluster.tournamentNode", 0);
+    }
+
+    // starts accepting clients
+    public void start() {
+        try {
+            listener = new Listener("gateway", port);
+            listener.bind();
+            running = true;
+            System.out.println("TicTacToe Gateway started on port " + port + " in front of " + nodes);
+
+            listener.accept(clientSocket -> threadPool.execute(new Connection(clientSocket)));
+        } catch (IOException e) {
+            System.err.println("Could not start gateway: " + e.getMessage());
+        }
+    }
+
+    // stops the gateway, relayed connections are closed with their threads
+    public void stop() {
+        running = false;
+        if (listener != null) {
+            listener.close();
+        }
+        threadPool.shutdownNow();
+    }
+
+    // pairs a player with one waiting for the same board size on another connection,
+    // or makes it wait. returns the partner or null
+    private Waiting matchPlayer(Connection connection, Utils.Message login, int boardSize) {
+        synchronized (waitingPlayers) {
+            Deque<Waiting> queue = waitingPlayers.computeIfAbsent(boardSize, size -> new ArrayDeque<>());
+            for (Iterator<Waiting> it = queue.iterator(); it.hasNext(); ) {
+                Waiting waiting = it.next();
+                if (waiting.connection.closed) {
+                    it.remove();
+                } else if (waiting.connection != connection) {
+                    it.remove();
+                    return waiting;
+                }
+            }
+            queue.add(new Waiting(connection, login));
+            return null;
+        }
+    }
+
+    // puts a partner back at the head of its queue, a match that could not be placed
+    // is not its fault
+    private void requeue(Waiting waiting, int boardSize) {
+        synchronized (waitingPlayers) {
+            waitingPlayers.computeIfAbsent(boardSize, size -> new ArrayDeque<>()).addFirst(waiting);
+        }
+    }
+
+    private void removeWaitingPlayer(Connection connection) {
+        synchronized (waitingPlayers) {
+            for (Deque<Waiting> queue : waitingPlayers.values()) {
+                queue.removeIf(waiting -> waiting.connection == connection);
+            }
+        }
+    }
+
+    // the node with the fewest relayed connections
+    private int pickNode() {
+        int best = 0;
+        for (int i = 1; i < activeConnections.length; i++) {
+            if (activeConnections[i].get() < activeConnections[best].get()) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // a LOGIN waiting for an opponent
+    private static class Waiting {
+        private final Connection connection;
+        private final Utils.Message login;
+
+        private Waiting(Connection connection, Utils.Message login) {
+            this.connection = connection;
+            this.login = login;
+        }
+    }
+
+    // one client connection. like on a single server it may play many games at once,
+    // every game gets its own connection to the node that hosts it, and client
+    // messages are routed to their game by GAME_ID
+    private class Connection implements Runnable {
+        private Socket clientSocket;
+        private MessageChannel clientChannel;
+        private volatile boolean closed;
+
+        private final List<NodeLink> links = new CopyOnWriteArrayList<>();
+        private final Map<Long, NodeLink> gameLinks = new ConcurrentHashMap<>();
+        // gets the messages without a GAME_ID, the link of the latest game
+        private volatile NodeLink lastLink;
+        // carries STATS and HISTORY, any node answers them from the shared database
+        private NodeLink queryLink;
+        // set once a node answered WATCH, from then on the client only gets frames
+        private boolean watching;
+
+        // of the message handled last, echoed in the gateway's own replies
+        private int requestId;
+        // the limits of a node connection, so a client cannot flood the gateway instead
+        private final RateLimiter rateLimiter = new RateLimiter();
+
+        private Connection(Socket clientSocket) {
+            this.clientSocket = clientSocket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                clientSocket.setSoTimeout(ServerConfig.getInt("connection.readTimeoutMs", 60000));
+                clientChannel = MessageChannel.accept(clientSocket);
+
+                while (running) {
+                    Utils.Message message = clientChannel.read();
+                    requestId = message.has(Utils.Field.REQUEST_ID) ? message.getInt(Utils.Field.REQUEST_ID) : 0;
+                    if (!rateLimiter.tryAcquire(message.getType())) {
+                        if (!rejectMessage(message)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (!handleMessage(message)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // client went away, the nodes notice when the relays are closed
+            } finally {
+                removeWaitingPlayer(this);
+                close();
+            }
+        }
+
+        // drops a message over the rate limit, returns false to close a client that keeps flooding
+        private boolean rejectMessage(Utils.Message message) throws IOException {
+            if (rateLimiter.violated()) {
+                System.out.println("Disconnecting flooding client: " + clientSocket.getInetAddress().getHostAddress());
+                return false;
+            }
+            sendError("Too many " + message.getType() + " messages, slow down");
+            return true;
+        }
+
+        // handles a message from the client, returns false to close
+        private boolean handleMessage(Utils.Message message) throws IOException {
+            switch (message.getType()) {
+                case LOGIN:
+                    if (checkName(message)) {
+                        handleLogin(message);
+                    }
+                    return true;
+                case RESUME:
+                    int tokenNode = GameSession.getNodeOfToken(message.getString(Utils.Field.RESUME_TOKEN));
+                    attachOrFail(tokenNode, message, true);
+                    return true;
+                case WATCH:
+                    int gameNode = Server.getNodeOfSession(message.getLong(Utils.Field.GAME_ID));
+                    attachOrFail(gameNode, message, true);
+                    return true;
+                case TOURNAMENT:
+                    // the link stays for all games of the tournament and its STANDINGS
+                    if (checkName(message)) {
+                        attachOrFail(tournamentNode, message, false);
+                    }
+                    return true;
+                case STATS:
+                case HISTORY:
+                    handleQuery(message);
+                    return true;
+                case PING:
+                    sendToClient(withRequestId(new Utils.Message(Utils.MessageType.PONG)));
+                    // answered here, only node connections that went quiet get one so they
+                    // do not go idle. their PONGs are not relayed
+                    long now = System.nanoTime();
+                    for (NodeLink link : links) {
+                        if (now - link.lastSent >= LINK_PING_NANOS) {
+                            link.send(message);
+                        }
+                    }
+                    return true;
+                case PONG:
+                    return true;
+                case QUIT:
+                    if (!message.has(Utils.Field.GAME_ID)) {
+                        // leaves all games
+                        for (NodeLink link : links) {
+                            link.send(message);
+                        }
+                        return false;
+                    }
+                    return route(message);
+                default:
+                    return route(message);
+            }
+        }
+
+        // sends a message about a game to the node the game is on
+        private boolean route(Utils.Message message) throws IOException {
+            NodeLink link = message.has(Utils.Field.GAME_ID)
+                    ? gameLinks.get(message.getLong(Utils.Field.GAME_ID)) : lastLink;
+            if (link == null) {
+                sendError(message.has(Utils.Field.GAME_ID) ? "Unknown game" : "Not in a game");
+                return true;
+            }
+            link.send(message);
+            return true;
+        }
+
+        // the answer is relayed like any other message, with the REQUEST_ID the node echoes
+        private void handleQuery(Utils.Message message) throws IOException {
+            if (queryLink == null || queryLink.socket.isClosed()) {
+                try {
+                    queryLink = open(pickNode(), false);
+                } catch (IOException e) {
+                    System.err.println("Could not reach a node for a query: " + e.getMessage());
+                    sendError("Server unavailable, please try again");
+                    return;
+                }
+            }
+            queryLink.send(message);
+        }
+
+        // the nodes refuse a name that is too long, a LOGIN the gateway matched already
+        // would leave its partner without a game
+        private boolean checkName(Utils.Message message) throws IOException {
+            if (Utils.isValidName(message.getString(Utils.Field.PLAYER_NAME))) {
+                return true;
+            }
+            sendError("Name too long, at most " + Utils.MAX_NAME_BYTES + " bytes");
+            return false;
+        }
+
+        // matchmaking across the cluster, the player that waited plays X as on a single server
+        private void handleLogin(Utils.Message message) throws IOException {
+            int boardSize = message.getInt(Utils.Field.BOARD_SIZE);
+            if (boardSize != Utils.BOARD_SIZE_3X3 &&
+                    boardSize != Utils.BOARD_SIZE_4X4 &&
+                    boardSize != Utils.BOARD_SIZE_5X5) {
+                sendError("Invalid board size: " + boardSize);
+                return;
+            }
+            // a stopping gateway pairs nobody, the client should connect to another one
+            if (!running) {
+                sendError("Server is shutting down, please reconnect");
+                return;
+            }
+
+            Waiting partner = matchPlayer(this, message, boardSize);
+            if (partner == null) {
+                Utils.Message waitMessage = new Utils.Message(Utils.MessageType.WAIT);
+                waitMessage.set(Utils.Field.BOARD_SIZE, boardSize);
+                sendToClient(withRequestId(waitMessage));
+                return;
+            }
+
+            int target = pickNode();
+            String matchId = "match-" + nextMatchId.getAndIncrement();
+            // both seats get their link before the node reserves either of them, a link
+            // released after a failure takes its reservation on the node with it
+            NodeLink partnerLink = null;
+            NodeLink ownLink = null;
+            try {
+                partnerLink = partner.connection.open(target, true);
+                ownLink = open(target, true);
+                partner.connection.lastLink = partnerLink;
+                lastLink = ownLink;
+                partnerLink.send(withMatchId(partner.login, matchId));
+                ownLink.send(withMatchId(message, matchId));
+            } catch (IOException e) {
+                if (partnerLink != null) {
+                    partnerLink.release();
+                }
+                if (ownLink != null) {
+                    ownLink.release();
+                }
+                if (partner.connection.closed) {
+                    // the partner is lost, this player waits for somebody else
+                    handleLogin(message);
+                    return;
+                }
+                System.err.println("Could not place match on node " + target + ": " + e.getMessage());
+                requeue(partner, boardSize);
+                sendError("Server unavailable, please try again");
+            }
+        }
+
+        private Utils.Message withMatchId(Utils.Message message, String matchId) {
+            message.set(Utils.Field.MATCH_ID, matchId);
+            return message;
+        }
+
+        private void attachOrFail(int target, Utils.Message firstMessage, boolean perGame) throws IOException {
+            if (target < 0 || target >= nodes.size()) {
+                sendError("Unknown game");
+                return;
+            }
+            try {
+                attach(target, firstMessage, perGame);
+            } catch (IOException e) {
+                System.err.println("Could not reach node " + target + ": " + e.getMessage());
+                sendError("Server unavailable, please try again");
+            }
+        }
+
+        // opens a connection to the node for a game, forwards the first message
+        private void attach(int target, Utils.Message firstMessage, boolean perGame) throws IOException {
+            NodeLink link = open(target, perGame);
+            lastLink = link;
+            link.send(firstMessage);
+        }
+
+        // opens a connection to the node and starts relaying
+        private NodeLink open(int target, boolean perGame) throws IOException {
+            NodeLink link = new NodeLink(target, perGame);
+            links.add(link);
+            if (closed) {
+                // the client left while the link was opened
+                link.close();
+                throw new IOException("Client connection closed");
+            }
+            threadPool.execute(link::relay);
+            return link;
+        }
+
+        // a message for the client, as a frame once the client watches a game
+        private void sendToClient(Utils.Message message) throws IOException {
+            synchronized (clientChannel) {
+                if (watching) {
+                    clientChannel.writeFrame(clientChannel.getProtocol().encodeFrame(message));
+                    return;
+                }
+                clientChannel.write(message);
+                if (message.getType() == Utils.MessageType.WATCH) {
+                    watching = true;
+                }
+            }
+        }
+
+        private void sendError(String errorMessage) throws IOException {
+            Utils.Message error = new Utils.Message(Utils.MessageType.ERROR);
+            error.set(Utils.Field.MESSAGE, errorMessage);
+            sendToClient(withRequestId(error));
+        }
+
+        private Utils.Message withRequestId(Utils.Message reply) {
+            if (requestId != 0) {
+                reply.set(Utils.Field.REQUEST_ID, requestId);
+            }
+            return reply;
+        }
+
+        // closes the client and all node connections, safe to call more than once
+        private void close() {
+            closed = true;
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing relay: " + e.getMessage());
+            }
+            for (NodeLink link : links) {
+                link.close();
+            }
+        }
+
+        // the connection to one node, speaks the protocol of the client so frames are
+        // copied as they are. a link that dies takes the client connection with it, the
+        // client reconnects and resumes its games
+        private class NodeLink {
+            private final int node;
+            // a link opened for one game is closed once that game is over
+            private final boolean perGame;
+            private final Socket socket;
+            private final MessageChannel channel;
+            // games of the client on this link, only touched by the relay thread
+            private int games;
+            private boolean started;
+            private volatile boolean released;
+            private volatile long lastSent = System.nanoTime();
+
+            private NodeLink(int node, boolean perGame) throws IOException {
+                this.node = node;
+                this.perGame = perGame;
+                this.socket = new Socket(nodes.get(node).getHostString(), nodes.get(node).getPort());
+                socket.setTcpNoDelay(true);
+                this.channel = MessageChannel.connect(socket, clientChannel.getProtocol());
+                activeConnections[node].incrementAndGet();
+            }
+
+            private void send(Utils.Message message) throws IOException {
+                synchronized (channel) {
+                    channel.write(message);
+                }
+                lastSent = System.nanoTime();
+            }
+
+            // copies everything the node sends to the client. after a WATCH answer the
+            // node only sends frames, they are copied as they are
+            private void relay() {
+                boolean frames = false;
+                try {
+                    while (true) {
+                        if (frames) {
+                            byte[] frame = channel.readFrameBytes();
+                            synchronized (clientChannel) {
+                                clientChannel.writeFrame(frame);
+                            }
+                            continue;
+                        }
+                        Utils.Message message = channel.read();
+                        switch (message.getType()) {
+                            case PONG:
+                                // answers to the PINGs that keep the link alive
+                                continue;
+                            case GAME_START:
+                            case RESYNC:
+                                gameStarted(message.getLong(Utils.Field.GAME_ID));
+                                break;
+                            case WATCH:
+                                frames = true;
+                                break;
+                        }
+                        sendToClient(message);
+                        if (message.getType() == Utils.MessageType.GAME_OVER
+                                && !"aborted".equals(message.getString(Utils.Field.RESULT))) {
+                            gameEnded(message.getLong(Utils.Field.GAME_ID));
+                        } else if (message.getType() == Utils.MessageType.ERROR && perGame && !started) {
+                            // the node refused the LOGIN, RESUME or WATCH this link was opened for
+                            release();
+                        }
+                    }
+                } catch (IOException e) {
+                    // node or client went away
+                } finally {
+                    if (!released) {
+                        Connection.this.close();
+                    }
+                }
+            }
+
+            private void gameStarted(long gameId) {
+                if (gameLinks.put(gameId, this) != this) {
+                    games++;
+                }
+                started = true;
+                lastLink = this;
+            }
+
+            private void gameEnded(long gameId) {
+                if (gameLinks.remove(gameId, this)) {
+                    games--;
+                }
+                if (perGame && games == 0) {
+                    release();
+                }
+            }
+
+            // closes the link without closing the client connection
+            private void release() {
+                released = true;
+                links.remove(this);
+                if (lastLink == this) {
+                    lastLink = null;
+                }
+                close();
+            }
+
+            private synchronized void close() {
+                if (socket.isClosed()) {
+                    return;
+                }
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing relay: " + e.getMessage());
+                }
+                activeConnections[node].decrementAndGet();
+            }
+        }
+    }
+
+    // parses a list like "localhost:1301,localhost:1302"
+    public static List<InetSocketAddress> parseNodes(String nodes) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String node : nodes.split(",")) {
+            String[] parts = node.trim().split(":");
+            addresses.add(InetSocketAddress.createUnresolved(parts[0], Integer.parseInt(parts[1])));
+        }
+        return addresses;
+    }
+
+    public static void main(String[] args) {
+        Gateway gateway = new Gateway(ServerConfig.getInt("gateway.port", Utils.SERVER_PORT),
+                parseNodes(ServerConfig.getProperty("cluster.nodes", "localhost:1301,localhost:1302")));
+        gateway.start();
+    }
+}
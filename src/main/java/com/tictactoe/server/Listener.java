@@ -0,0 +1,144 @@
+package com.tictactoe.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// accepts connections on a port with one or more acceptor threads. only Linux spreads
+// new connections over sockets bound with SO_REUSEPORT, there every acceptor gets its
+// own socket. other systems accept the option but hand all connections to one of the
+// sockets, so they get a single socket and acceptor.
+// options are read with a prefix, e.g. server.acceptors or gateway.tcpNoDelay
+public class Listener {
+    private final String name;
+    private final int port;
+    private final int acceptors;
+    private final int backlog;
+    private final boolean reusePort;
+    private final boolean tcpNoDelay;
+    private final int receiveBufferSize;
+    private final int sendBufferSize;
+
+    private final List<ServerSocket> serverSockets;
+    private volatile boolean running;
+
+    // creates a listener configured by the <prefix>.* properties
+    public Listener(String prefix, int port) {
+        this.name = prefix;
+        this.port = port;
+        this.reusePort = ServerConfig.getBoolean(prefix + ".reusePort", true) && balancesReusePort();
+        this.acceptors = reusePort ? Math.max(1, ServerConfig.getInt(prefix + ".acceptors", 1)) : 1;
+        this.backlog = ServerConfig.getInt(prefix + ".backlog", 128);
+        // moves are tiny writes, waiting to coalesce them only adds latency
+        this.tcpNoDelay = ServerConfig.getBoolean(prefix + ".tcpNoDelay", true);
+        // 0 keeps the OS default
+        this.receiveBufferSize = ServerConfig.getInt(prefix + ".receiveBufferSize", 0);
+        this.sendBufferSize = ServerConfig.getInt(prefix + ".sendBufferSize", 0);
+        this.serverSockets = new ArrayList<>();
+    }
+
+    // binds the sockets, throws if the port can not be used
+    public void bind() throws IOException {
+        try {
+            for (int i = 0; i < acceptors; i++) {
+                ServerSocket serverSocket = new ServerSocket();
+                if (acceptors > 1) {
+                    serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                // set before bind, so accepted sockets can use a matching TCP window
+                if (receiveBufferSize > 0) {
+                    serverSocket.setReceiveBufferSize(receiveBufferSize);
+                }
+                serverSocket.bind(new InetSocketAddress(port), backlog);
+                serverSockets.add(serverSocket);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        running = true;
+    }
+
+    // runs the acceptors until the listener is closed. one of them runs on the
+    // calling thread, so this returns only when the listener stops
+    public void accept(Consumer<Socket> handler) {
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocket serverSocket = serverSockets.get(i);
+            Thread acceptor = new Thread(() -> acceptLoop(serverSocket, handler), name + "-acceptor-" + i);
+            acceptor.start();
+        }
+        acceptLoop(serverSockets.get(0), handler);
+    }
+
+    private void acceptLoop(ServerSocket serverSocket, Consumer<Socket> handler) {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                configure(socket);
+                handler.accept(socket);
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // sets the per connection options, closes the socket if that fails
+    private void configure(Socket socket) throws IOException {
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+            if (sendBufferSize > 0) {
+                socket.setSendBufferSize(sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                socket.setReceiveBufferSize(receiveBufferSize);
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // stops accepting, the acceptor threads end when their socket is closed
+    public void close() {
+        running = false;
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server socket: " + e.getMessage());
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // number of sockets bound, more than one when SO_REUSEPORT is used
+    public int getSocketCount() {
+        return serverSockets.size();
+    }
+
+    public int getAcceptorCount() {
+        return acceptors;
+    }
+
+    // Linux with a JDK that can set the option
+    private static boolean balancesReusePort() {
+        if (!System.getProperty("os.name", "").toLowerCase().startsWith("linux")) {
+            return false;
+        }
+        try (ServerSocket probe = new ServerSocket()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
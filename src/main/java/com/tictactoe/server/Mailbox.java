@@ -0,0 +1,97 @@
+package com.tictactoe.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// queue of items that are processed by at most one thread at a time.
+// many mailboxes share a small executor, so an owner never needs locks
+public class Mailbox<T> {
+    // max items processed in one tick before giving the thread to other mailboxes
+    private static final int MAX_BATCH = 64;
+
+    // processes the items of a mailbox
+    public interface Handler<T> {
+        void handle(T item);
+
+        // called once after every tick, a good place to flush batched output
+        default void endOfTick() {
+        }
+    }
+
+    private final Queue<T> queue;
+    private final AtomicInteger size;
+    private final int capacity;
+    private final AtomicBoolean scheduled;
+    private final Executor executor;
+    private final Handler<T> handler;
+    // created once, a method reference is a new object every time
+    private final Runnable drainTask = this::drain;
+
+    // creates a new unbounded mailbox that runs its handler on the given executor
+    public Mailbox(Executor executor, Handler<T> handler) {
+        this(executor, handler, Integer.MAX_VALUE);
+    }
+
+    // creates a mailbox that holds at most capacity items
+    public Mailbox(Executor executor, Handler<T> handler, int capacity) {
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.size = new AtomicInteger(0);
+        this.capacity = capacity;
+        this.scheduled = new AtomicBoolean(false);
+        this.executor = executor;
+        this.handler = handler;
+    }
+
+    // adds an item and schedules the mailbox if it is not already scheduled,
+    // returns false (and drops the item) if the mailbox is full
+    public boolean post(T item) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            return false;
+        }
+        queue.add(item);
+        schedule();
+        return true;
+    }
+
+    // schedules a tick unless one is already pending or running
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(drainTask);
+            } catch (RejectedExecutionException e) {
+                // executor is shutting down, nothing will process the mailbox anymore
+                scheduled.set(false);
+            }
+        }
+    }
+
+    // processes one batch of items
+    private void drain() {
+        try {
+            for (int i = 0; i < MAX_BATCH; i++) {
+                T item = queue.poll();
+                if (item == null) {
+                    break;
+                }
+                size.decrementAndGet();
+                try {
+                    handler.handle(item);
+                } catch (RuntimeException e) {
+                    System.err.println("Error processing mailbox item: " + e.getMessage());
+                }
+            }
+            handler.endOfTick();
+        } finally {
+            scheduled.set(false);
+            // items posted while running (or left over from the batch limit) need another tick
+            if (!queue.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
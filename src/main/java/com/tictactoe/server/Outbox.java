@@ -0,0 +1,97 @@
+package com.tictactoe.server;
+
+import java.io.OutputStream;
+
+// bytes waiting to be written to one connection. senders encode their messages into
+// it without touching the socket, the connection's writer takes everything queued so
+// far and sends it with one write. two buffers take turns, so once they grew to what
+// the connection needs nothing is allocated per message
+class Outbox extends OutputStream {
+    private static final int INITIAL_SIZE = 1024;
+
+    private final int capacity;
+    private byte[] queued = new byte[INITIAL_SIZE];
+    private int size;
+    // what the writer took with the last take, only the writer reads it
+    private byte[] taken = new byte[INITIAL_SIZE];
+    // set once a write did not fit, the rest of the stream is lost with it
+    private boolean full;
+    private boolean closed;
+
+    // an outbox that holds at most capacity bytes the writer did not take yet
+    Outbox(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (reserve(1)) {
+            queued[size++] = (byte) b;
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        if (reserve(length)) {
+            System.arraycopy(bytes, offset, queued, size, length);
+            size += length;
+        }
+    }
+
+    // makes room for length more bytes, false if they do not fit
+    private boolean reserve(int length) {
+        if (full || closed) {
+            return false;
+        }
+        if (size + length > capacity) {
+            full = true;
+            return false;
+        }
+        if (size + length > queued.length) {
+            int grown = queued.length;
+            while (grown < size + length) {
+                grown *= 2;
+            }
+            byte[] bigger = new byte[Math.min(grown, capacity)];
+            System.arraycopy(queued, 0, bigger, 0, size);
+            queued = bigger;
+        }
+        return true;
+    }
+
+    // wakes the writer, what was written so far is ready to go
+    @Override
+    public synchronized void flush() {
+        notifyAll();
+    }
+
+    // no more bytes are taken, the writer stops once it sent what is queued
+    @Override
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    // true once bytes were lost because the client did not take them fast enough
+    synchronized boolean isFull() {
+        return full;
+    }
+
+    // writer: waits for queued bytes and takes them, they are in getTaken until the
+    // next take. returns 0 once the outbox is closed and empty
+    synchronized int take() throws InterruptedException {
+        while (size == 0 && !closed) {
+            wait();
+        }
+        byte[] swapped = taken;
+        taken = queued;
+        queued = swapped;
+        int length = size;
+        size = 0;
+        return length;
+    }
+
+    byte[] getTaken() {
+        return taken;
+    }
+}
@@ -0,0 +1,111 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+import com.tictactoe.db.GameDB;
+import com.tictactoe.db.PlayerDB;
+import com.tictactoe.db.model.GameEntity;
+import com.tictactoe.db.model.PlayerEntity;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// answers STATS and HISTORY requests from the database. the queries run on a
+// small pool of their own, so a slow database only delays the answer and never
+// the moves a client sends after its request. answers carry the request id,
+// they may arrive after replies to later requests
+public class PlayerQueries {
+    private final ExecutorService pool;
+    private final int historyLimit;
+
+    public PlayerQueries() {
+        this.pool = Executors.newFixedThreadPool(ServerConfig.getInt("query.threads", 2));
+        this.historyLimit = ServerConfig.getInt("query.historyLimit", 10);
+    }
+
+    // sends the record of a player as STATS
+    public void submitStats(ClientHandler handler, String playerName, int requestId) {
+        submit(handler, playerName, requestId, () -> {
+            PlayerEntity player = new PlayerDB().findByName(playerName);
+            if (player == null) {
+                return null;
+            }
+            Utils.Message stats = new Utils.Message(Utils.MessageType.STATS);
+            stats.set(Utils.Field.PLAYER_NAME, playerName);
+            stats.set(Utils.Field.GAMES_PLAYED, player.getGamesPlayed());
+            stats.set(Utils.Field.GAMES_WON, player.getGamesWon());
+            stats.set(Utils.Field.GAMES_LOST, player.getGamesLost());
+            stats.set(Utils.Field.GAMES_TIED, player.getGamesTied());
+            return stats;
+        });
+    }
+
+    // sends the last games of a player as HISTORY, newest first
+    public void submitHistory(ClientHandler handler, String playerName, int requestId) {
+        submit(handler, playerName, requestId, () -> {
+            PlayerEntity player = new PlayerDB().findByName(playerName);
+            if (player == null) {
+                return null;
+            }
+            List<GameEntity> games = new GameDB().getGamesByPlayer(player.getId(), historyLimit);
+            String[] opponents = new String[games.size()];
+            String[] results = new String[games.size()];
+            int[] boardSizes = new int[games.size()];
+            for (int i = 0; i < games.size(); i++) {
+                GameEntity game = games.get(i);
+                PlayerEntity opponent = game.getPlayer1Id() == player.getId() ? game.getPlayer2() : game.getPlayer1();
+                opponents[i] = opponent != null ? opponent.getName() : "";
+                if (game.getWinnerId() == 0) {
+                    results[i] = "tie";
+                } else {
+                    results[i] = game.getWinnerId() == player.getId() ? "win" : "loss";
+                }
+                boardSizes[i] = game.getBoardSize();
+            }
+
+            Utils.Message history = new Utils.Message(Utils.MessageType.HISTORY);
+            history.set(Utils.Field.PLAYER_NAME, playerName);
+            history.set(Utils.Field.HISTORY_OPPONENTS, opponents);
+            history.set(Utils.Field.HISTORY_RESULTS, results);
+            history.set(Utils.Field.HISTORY_BOARD_SIZES, boardSizes);
+            return history;
+        });
+    }
+
+    // runs a query on the pool and sends its answer, or an error if it found nothing
+    private void submit(ClientHandler handler, String playerName, int requestId, Supplier<Utils.Message> query) {
+        try {
+            pool.execute(() -> {
+                Utils.Message reply = null;
+                try {
+                    reply = query.get();
+                } catch (RuntimeException e) {
+                    System.err.println("Error querying player " + playerName + ": " + e.getMessage());
+                }
+                if (reply == null) {
+                    reply = new Utils.Message(Utils.MessageType.ERROR);
+                    reply.set(Utils.Field.MESSAGE, "No record of player " + playerName);
+                }
+                if (requestId != 0) {
+                    reply.set(Utils.Field.REQUEST_ID, requestId);
+                }
+                handler.sendMessage(reply);
+            });
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+        }
+    }
+
+    // stops taking queries and waits a little for the running ones
+    public void stop(long timeoutMs) {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+
+// token buckets of one connection, one bucket per message type. each bucket is
+// a single long (the time at which it is full again), so a check is a few
+// arithmetic operations and never allocates. rejected messages are counted per
+// window, a client that is over a limit now and then is never disconnected for it
+public class RateLimiter {
+    private static final int TYPE_COUNT = Utils.MessageType.values().length;
+
+    // nanoseconds one message of a type costs, 0 for unlimited types
+    private static final long[] COST_NANOS = new long[TYPE_COUNT];
+    // how far a bucket may run ahead of the clock, i.e. the burst allowance
+    private static final long[] BURST_NANOS = new long[TYPE_COUNT];
+
+    // rejected messages within one window after which a connection is closed
+    private static final int MAX_VIOLATIONS = ServerConfig.getInt("rateLimit.maxViolations", 20);
+    private static final long VIOLATION_WINDOW_NANOS =
+            ServerConfig.getLong("rateLimit.violationWindowMs", 60000) * 1_000_000L;
+
+    static {
+        double defaultRate = Double.parseDouble(ServerConfig.getProperty("rateLimit.default.perSecond", "20"));
+        int defaultBurst = ServerConfig.getInt("rateLimit.default.burst", 40);
+        for (Utils.MessageType type : Utils.MessageType.values()) {
+            double rate = Double.parseDouble(
+                    ServerConfig.getProperty("rateLimit." + type + ".perSecond", String.valueOf(defaultRate)));
+            int burst = ServerConfig.getInt("rateLimit." + type + ".burst", defaultBurst);
+            if (rate > 0) {
+                COST_NANOS[type.ordinal()] = (long) (1_000_000_000L / rate);
+                BURST_NANOS[type.ordinal()] = COST_NANOS[type.ordinal()] * Math.max(burst - 1, 0);
+            }
+        }
+    }
+
+    private final long[] fullAt = new long[TYPE_COUNT];
+    private final long created = System.nanoTime();
+    // the window starts with its first rejected message
+    private long windowStart;
+    private int violations;
+
+    // takes a token for a message of the given type, returns false if the bucket is empty
+    public boolean tryAcquire(Utils.MessageType type) {
+        int i = type.ordinal();
+        long cost = COST_NANOS[i];
+        if (cost == 0) {
+            return true;
+        }
+
+        // times are kept relative to the creation of the limiter, so a zero bucket starts full
+        long now = System.nanoTime() - created;
+        long start = Math.max(fullAt[i], now);
+        if (start - now > BURST_NANOS[i]) {
+            return false;
+        }
+        fullAt[i] = start + cost;
+        return true;
+    }
+
+    // counts a rejected message, returns true once there were too many in one window
+    public boolean violated() {
+        long now = System.nanoTime();
+        if (violations == 0 || now - windowStart > VIOLATION_WINDOW_NANOS) {
+            windowStart = now;
+            violations = 0;
+        }
+        return ++violations >= MAX_VIOLATIONS;
+    }
+}
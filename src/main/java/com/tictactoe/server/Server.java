@@ -4,103 +4,447 @@ import com.tictactoe.Utils;
 import com.tictactoe.game.Player;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
     // server components
-    private ServerSocket serverSocket;
-    private boolean running;
+    private int port;
+    private int nodeId;
+    private Listener listener;
+    private volatile boolean running;
+    private volatile boolean draining;
+    private Set<ClientHandler> clients;
+
+    // admission control: connections over the limit get a BUSY answer and are closed
+    private int maxConnections;
+    private AtomicInteger connectionCount;
+    private byte[] busyFrame;
     private ExecutorService threadPool;
-    private Map<Integer, ClientHandler> waitingPlayers;
+    private ExecutorService sessionPool;
+    private ExecutorService writerPool;
+    private TimingWheel timingWheel;
+    private ServerMetrics metrics;
+    private WriteAheadLog writeAheadLog;
+    private TournamentScheduler tournamentScheduler;
+    // null when finished games are not stored
+    private GameRecorder gameRecorder;
+    // null like gameRecorder, there is nothing to query then
+    private PlayerQueries playerQueries;
+
+    // live game sessions by id and by resume token
+    private AtomicLong nextSessionId;
+    private Map<Long, GameSession> sessions;
+    private Map<String, GameSession> sessionsByToken;
+    // players waiting for an opponent, in order, by board size. a connection may wait
+    // for several games at once, so an entry is a player on a connection
+    private Map<Integer, Deque<WaitingPlayer>> waitingPlayers;
+    // players placed together by a cluster gateway, by match id
+    private Map<String, WaitingPlayer> reservedMatches;
+
+    // a player waiting to be matched
+    private static class WaitingPlayer {
+        private final ClientHandler handler;
+        private final Player player;
+
+        private WaitingPlayer(ClientHandler handler, Player player) {
+            this.handler = handler;
+            this.player = player;
+        }
+    }
 
     // creates a new server
     public Server() {
+        this.port = ServerConfig.getInt("server.port", Utils.SERVER_PORT);
+        this.nodeId = ServerConfig.getInt("server.nodeId", 0);
         this.waitingPlayers = new ConcurrentHashMap<>();
+        this.reservedMatches = new ConcurrentHashMap<>();
+        this.clients = ConcurrentHashMap.newKeySet();
+        this.maxConnections = ServerConfig.getInt("server.maxConnections", 10000);
+        this.connectionCount = new AtomicInteger();
+        this.busyFrame = createBusyFrame(ServerConfig.getLong("admission.retryAfterMs", 5000));
+        this.metrics = new ServerMetrics();
+        this.nextSessionId = new AtomicLong(((long) nodeId << Utils.NODE_ID_SHIFT) + 1);
+        this.sessions = new ConcurrentHashMap<>();
+        this.sessionsByToken = new ConcurrentHashMap<>();
         this.threadPool = Executors.newCachedThreadPool();
+        // game sessions are multiplexed over one thread per core
+        this.sessionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // every connection has a writer thread of its own, a client that does not read
+        // only blocks its own writer and never a session thread or other connections
+        this.writerPool = Executors.newCachedThreadPool();
+        // one wheel holds the clocks of all sessions
+        this.timingWheel = new TimingWheel(ServerConfig.getLong("wheel.tickMs", 100), TimeUnit.MILLISECONDS,
+                ServerConfig.getInt("wheel.buckets", 512));
+        this.tournamentScheduler = new TournamentScheduler(this);
+        if (ServerConfig.getBoolean("persistence.enabled", true)) {
+            this.gameRecorder = new GameRecorder(metrics);
+            this.playerQueries = new PlayerQueries();
+        }
+        // live games are logged so they survive a crash, each node has its own log
+        if (ServerConfig.getBoolean("wal.enabled", true)) {
+            this.writeAheadLog = new WriteAheadLog(WriteAheadLog.getPath(nodeId), nodeId, metrics);
+        }
     }
 
     // starts the server
     public void start() {
         try {
-            serverSocket = new ServerSocket(Utils.SERVER_PORT);
+            listener = new Listener("server", port);
+            listener.bind();
             running = true;
-            System.out.println("TicTacToe Server started on port " + Utils.SERVER_PORT);
+            timingWheel.start();
+            if (gameRecorder != null) {
+                gameRecorder.start();
+            }
+            recoverSessions();
+            scheduleMetricsLog();
+            System.out.println("TicTacToe Server started on port " + port + " (node " + nodeId + ", " +
+                    listener.getAcceptorCount() + " acceptors on " + listener.getSocketCount() + " sockets)");
+
+            // accept client connections, returns when the listener is closed
+            listener.accept(this::acceptClient);
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+        }
+    }
+
+    // restores the games that were live when the server went down, before any client connects
+    private void recoverSessions() throws IOException {
+        if (writeAheadLog == null) {
+            return;
+        }
+        for (WriteAheadLog.RecoveredSession recovered : writeAheadLog.open()) {
+            nextSessionId.accumulateAndGet(recovered.getId() + 1, Math::max);
+            GameSession gameSession = new GameSession(recovered, this);
+            registerSession(gameSession);
+            gameSession.recover();
+        }
+    }
+
+    // called by the acceptor threads for every new connection
+    private void acceptClient(Socket clientSocket) {
+        if (connectionCount.incrementAndGet() > maxConnections) {
+            connectionCount.decrementAndGet();
+            rejectBusy(clientSocket);
+            return;
+        }
+        System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
+
+        // create new client handler and execute it in thread pool, the handler
+        // sets up its streams on its own thread so a slow client never blocks accept
+        ClientHandler clientHandler = new ClientHandler(clientSocket, this);
+        clients.add(clientHandler);
+        threadPool.execute(clientHandler);
+    }
+
+    // the BUSY answer is serialized once, with its own stream header, so turning a
+    // client away is a single write of bytes the client reads like any first message
+    private static byte[] createBusyFrame(long retryAfterMs) {
+        Utils.Message busy = new Utils.Message(Utils.MessageType.BUSY);
+        busy.set(Utils.Field.MESSAGE, "Server is busy, please try again later");
+        busy.set(Utils.Field.RETRY_AFTER, retryAfterMs);
+        try {
+            return Utils.encodeFrame(busy);
+        } catch (IOException e) {
+            // only writes to memory
+            throw new IllegalStateException("Could not encode busy message", e);
+        }
+    }
+
+    // sends the BUSY answer on the accept thread and closes the connection. the close
+    // is left to the timing wheel, so the client has time to read the answer before
+    // unread input makes the close reset the connection
+    private void rejectBusy(Socket clientSocket) {
+        metrics.connectionRejected();
+        try {
+            OutputStream outputStream = clientSocket.getOutputStream();
+            outputStream.write(busyFrame);
+            outputStream.flush();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            // the client is gone already
+        }
+        timingWheel.schedule(() -> {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing rejected connection: " + e.getMessage());
+            }
+        }, ServerConfig.getLong("admission.rejectLingerMs", 1000), TimeUnit.MILLISECONDS);
+    }
+
+    // stops the server gracefully: no new connections or logins, running games get
+    // until the deadline to finish, then the remaining ones are aborted and the
+    // connections are closed in batches so clients do not all reconnect at once.
+    // aborted games stay in the write-ahead log, the next start recovers them
+    public void drain(long timeoutMs) {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        System.out.println("Draining server, " + sessions.size() + " games in progress");
+
+        // stop accepting connections
+        running = false;
+        if (listener != null) {
+            listener.close();
+        }
+
+        // let the games finish
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!sessions.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        // abort what is left, the players get GAME_OVER before their connection closes
+        for (GameSession gameSession : sessions.values()) {
+            gameSession.submitShutdown();
+        }
+        awaitSessionsEnded(TimeUnit.SECONDS.toNanos(1));
 
-            // accept client connections
-            while (running) {
+        closeClientsInBatches();
+        stop();
+        System.out.println("Server drained");
+    }
+
+    // waits a short time for sessions to process their shutdown command
+    private void awaitSessionsEnded(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!sessions.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // closes the remaining connections a batch at a time
+    private void closeClientsInBatches() {
+        int batchSize = ServerConfig.getInt("drain.closeBatchSize", 100);
+        long interval = ServerConfig.getLong("drain.closeBatchIntervalMs", 200);
+
+        List<ClientHandler> remaining = new ArrayList<>(clients);
+        for (int i = 0; i < remaining.size(); i += batchSize) {
+            for (ClientHandler clientHandler : remaining.subList(i, Math.min(i + batchSize, remaining.size()))) {
+                clientHandler.closeForShutdown();
+            }
+            if (i + batchSize < remaining.size()) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getInetAddress().getHostAddress());
-
-                    // create new client handler and execute it in thread pool
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    threadPool.execute(clientHandler);
-                } catch (IOException e) {
-                    if (running) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
-                    }
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Could not start server: " + e.getMessage());
         }
     }
 
     // stop the server
     public void stop() {
         running = false;
+        if (listener != null) {
+            listener.close();
+        }
+        threadPool.shutdown();
+        sessionPool.shutdown();
+        writerPool.shutdown();
+        awaitWriters(draining ? ServerConfig.getLong("drain.writeTimeoutMs", 5000) : 0);
+        tournamentScheduler.stop();
+        timingWheel.stop();
+        if (writeAheadLog != null) {
+            writeAheadLog.close();
+        }
+        // finished games still queued are written before the server goes away
+        if (playerQueries != null) {
+            playerQueries.stop(ServerConfig.getLong("query.stopTimeoutMs", 1000));
+        }
+        if (gameRecorder != null) {
+            gameRecorder.stop(ServerConfig.getLong("persistence.flushTimeoutMs", 10000));
+        }
+    }
+
+    // after a drain the writers still send the last messages of the connections they
+    // close, the process must not exit before they are out. writers still waiting on an
+    // open connection after that are interrupted, they close it
+    private void awaitWriters(long timeoutMs) {
         try {
-            if (serverSocket != null && !serverSocket.isClosed()) {
-                serverSocket.close();
-            }
-            threadPool.shutdown();
-        } catch (IOException e) {
-            System.err.println("Error stopping server: " + e.getMessage());
+            writerPool.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        writerPool.shutdownNow();
     }
 
-    // try to match with a player with another waiting player
+    // try to match with a player with another waiting player. the oldest player
+    // waiting for the same board size on another connection is the opponent,
+    // a connection never plays against itself
     public synchronized boolean matchPlayer(ClientHandler clientHandler, Player player, int boardSize) {
-        // check if there is a player waiting for the same board size
-        ClientHandler waitingHandler = waitingPlayers.get(boardSize);
+        Deque<WaitingPlayer> queue = waitingPlayers.computeIfAbsent(boardSize, size -> new ArrayDeque<>());
+        Iterator<WaitingPlayer> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            WaitingPlayer waiting = iterator.next();
+            if (waiting.handler != clientHandler) {
+                iterator.remove();
+                startSession(boardSize, waiting.handler, waiting.player, clientHandler, player, null);
+                return true;
+            }
+        }
+
+        // no opponent for this board size, so add this player to the waiting list
+        queue.add(new WaitingPlayer(clientHandler, player));
+        return false;
+    }
 
-        if (waitingHandler == null) {
-            // no waiting player for this board size, so add this player to the waiting list
-            waitingPlayers.put(boardSize, clientHandler);
+    // pairs the two players a cluster gateway placed on this node under the same match id
+    public synchronized boolean joinMatch(ClientHandler clientHandler, Player player, int boardSize, String matchId) {
+        WaitingPlayer waiting = reservedMatches.remove(matchId);
+        if (waiting == null) {
+            reservedMatches.put(matchId, new WaitingPlayer(clientHandler, player));
             return false;
-        } else {
-            // found a waiting player, remove from waiting list
-            waitingPlayers.remove(boardSize);
+        }
+        startSession(boardSize, waiting.handler, waiting.player, clientHandler, player, null);
+        return true;
+    }
 
-            // get waiting player
-            Player waitingPlayer = waitingHandler.getPlayer();
+    // creates and starts a session, the first player plays X. the listener, if any, hears the result
+    public GameSession startSession(int boardSize, ClientHandler handler1, Player player1,
+                                    ClientHandler handler2, Player player2, GameSession.EndListener endListener) {
+        GameSession gameSession = new GameSession(boardSize, player1, player2, handler1, handler2, this);
+        gameSession.setEndListener(endListener);
+        handler1.addGameSession(gameSession);
+        handler2.addGameSession(gameSession);
+        registerSession(gameSession);
 
-            // create a new game session
-            GameSession gameSession = new GameSession(boardSize, waitingPlayer, player, waitingHandler, clientHandler);
-            waitingHandler.setGameSession(gameSession);
-            clientHandler.setGameSession(gameSession);
+        // start the game
+        gameSession.start();
+        return gameSession;
+    }
 
-            // start the game
-            gameSession.start();
-            return true;
+    // removes every waiting entry of a connection that went away
+    public synchronized void removeWaitingPlayer(ClientHandler clientHandler) {
+        for (Deque<WaitingPlayer> queue : waitingPlayers.values()) {
+            queue.removeIf(waiting -> waiting.handler == clientHandler);
         }
+        reservedMatches.values().removeIf(waiting -> waiting.handler == clientHandler);
+    }
+
+    // gets the node that owns a session id
+    public static int getNodeOfSession(long sessionId) {
+        return (int) (sessionId >>> Utils.NODE_ID_SHIFT);
+    }
+
+    public int getNodeId() {
+        return nodeId;
     }
 
-    // removes a player from the waiting list
-    public synchronized void removeWaitingPlayer(ClientHandler clientHandler, int boardSize) {
-        ClientHandler waitingHandler = waitingPlayers.get(boardSize);
-        if (waitingHandler == clientHandler) {
-            waitingPlayers.remove(boardSize);
+    // called by a handler when its connection is closed
+    public void clientDisconnected(ClientHandler clientHandler) {
+        if (clients.remove(clientHandler)) {
+            connectionCount.decrementAndGet();
         }
     }
 
+    public boolean isDraining() {
+        return draining;
+    }
+
+    // makes a session reachable by id and by its resume tokens
+    private void registerSession(GameSession gameSession) {
+        sessions.put(gameSession.getId(), gameSession);
+        sessionsByToken.put(gameSession.getPlayer1Token(), gameSession);
+        sessionsByToken.put(gameSession.getPlayer2Token(), gameSession);
+    }
+
+    // called by a session when its game is over, it can not be resumed anymore
+    public void sessionEnded(GameSession gameSession) {
+        sessions.remove(gameSession.getId());
+        sessionsByToken.remove(gameSession.getPlayer1Token());
+        sessionsByToken.remove(gameSession.getPlayer2Token());
+    }
+
+    // finds a live session by id
+    public GameSession findSession(long id) {
+        return sessions.get(id);
+    }
+
+    // finds the live session that owns a resume token
+    public GameSession findSessionByToken(String token) {
+        return token == null ? null : sessionsByToken.get(token);
+    }
+
+    public long nextSessionId() {
+        return nextSessionId.getAndIncrement();
+    }
+
+    // prints the metrics every metrics.logIntervalMs
+    private void scheduleMetricsLog() {
+        long interval = ServerConfig.getLong("metrics.logIntervalMs", 60000);
+        if (interval > 0) {
+            timingWheel.schedule(() -> {
+                System.out.println(metrics);
+                scheduleMetricsLog();
+            }, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public ExecutorService getSessionPool() {
+        return sessionPool;
+    }
+
+    public ExecutorService getWriterPool() {
+        return writerPool;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public TournamentScheduler getTournamentScheduler() {
+        return tournamentScheduler;
+    }
+
+    public GameRecorder getGameRecorder() {
+        return gameRecorder;
+    }
+
+    public PlayerQueries getPlayerQueries() {
+        return playerQueries;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     public static void main(String[] args) {
         Server server = new Server();
+        // a normal JVM shutdown (e.g. SIGTERM during a rolling restart) drains the server
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> server.drain(ServerConfig.getLong("drain.timeoutMs", Utils.DRAIN_TIMEOUT_MS))));
         server.start();
     }
 }
\ No newline at end of file
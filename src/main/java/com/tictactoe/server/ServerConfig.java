@@ -0,0 +1,48 @@
+package com.tictactoe.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+// server configuration, loaded from server.properties. a system property with
+// the same key (e.g. -Dturn.timeoutMs=10000) overrides the file
+public class ServerConfig {
+    private static final String DEFAULT_CONFIG_FILE = "server.properties";
+    private static Properties properties = new Properties();
+    private static boolean initialized = false;
+
+    // initialize server configuration with the default properties file
+    public static synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        try (InputStream inputStream = ServerConfig.class.getClassLoader().getResourceAsStream(DEFAULT_CONFIG_FILE)) {
+            if (inputStream != null) {
+                properties.load(inputStream);
+            } else {
+                System.err.println("Configuration file not found: " + DEFAULT_CONFIG_FILE + ", using defaults");
+            }
+        } catch (IOException e) {
+            System.err.println("Error loading server configuration: " + e.getMessage());
+        }
+        initialized = true;
+    }
+
+    // get a configuration property, or the default value if it is not set
+    public static String getProperty(String key, String defaultValue) {
+        init();
+        return System.getProperty(key, properties.getProperty(key, defaultValue));
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        return Integer.parseInt(getProperty(key, String.valueOf(defaultValue)).trim());
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        return Long.parseLong(getProperty(key, String.valueOf(defaultValue)).trim());
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getProperty(key, String.valueOf(defaultValue)).trim());
+    }
+}
@@ -0,0 +1,235 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// counters describing the health of the server
+public class ServerMetrics {
+    // connections closed by the reaper because the client went silent
+    private final LongAdder connectionsReaped = new LongAdder();
+    // connections closed because a read did not complete in time
+    private final LongAdder readTimeouts = new LongAdder();
+    // spectators disconnected because their frame buffer was full
+    private final LongAdder spectatorsDropped = new LongAdder();
+    // players disconnected because their outbound queue was full, and connections
+    // closed because a write to them did not complete in time
+    private final LongAdder playersDropped = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    // frames queued for spectators, each one shared by all watchers of a game
+    private final LongAdder spectatorFrames = new LongAdder();
+    // records appended to the write-ahead log, and forces of the log to disk
+    private final LongAdder walRecords = new LongAdder();
+    private final LongAdder walForces = new LongAdder();
+    // finished games on their way to the database: queued, written, failed, and
+    // dropped because the queue was full. the high water mark shows how close
+    // the queue came to its limit
+    private final LongAdder gamesQueued = new LongAdder();
+    private final LongAdder gamesPersisted = new LongAdder();
+    private final LongAdder gamesPersistenceFailed = new LongAdder();
+    private final LongAdder gamesPersistenceDropped = new LongAdder();
+    private final LongAccumulator persistenceQueueHighWater = new LongAccumulator(Math::max, 0);
+    // connections turned away because the server was full
+    private final LongAdder connectionsRejected = new LongAdder();
+    // messages dropped by the rate limiter, by message type
+    private final LongAdder[] messagesRejected = new LongAdder[Utils.MessageType.values().length];
+    // connections closed because they kept sending over their rate limit
+    private final LongAdder floodDisconnects = new LongAdder();
+    // messages written to players and flushes of their sockets, a flush is one
+    // write to the socket. writers coalesce, so there are fewer flushes than messages
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder socketFlushes = new LongAdder();
+
+    public ServerMetrics() {
+        for (int i = 0; i < messagesRejected.length; i++) {
+            messagesRejected[i] = new LongAdder();
+        }
+    }
+
+    public void connectionReaped() {
+        connectionsReaped.increment();
+    }
+
+    public void readTimedOut() {
+        readTimeouts.increment();
+    }
+
+    public void spectatorDropped() {
+        spectatorsDropped.increment();
+    }
+
+    public void playerDropped() {
+        playersDropped.increment();
+    }
+
+    public void writeTimedOut() {
+        writeTimeouts.increment();
+    }
+
+    public void spectatorFramesQueued(int count) {
+        spectatorFrames.add(count);
+    }
+
+    public void walRecordWritten() {
+        walRecords.increment();
+    }
+
+    public void walForced() {
+        walForces.increment();
+    }
+
+    public void gameQueuedForPersistence(int queueDepth) {
+        gamesQueued.increment();
+        persistenceQueueHighWater.accumulate(queueDepth);
+    }
+
+    public void gamesPersisted(int count) {
+        gamesPersisted.add(count);
+    }
+
+    public void gamesPersistenceFailed(int count) {
+        gamesPersistenceFailed.add(count);
+    }
+
+    public void gamePersistenceDropped() {
+        gamesPersistenceDropped.increment();
+    }
+
+    public void connectionRejected() {
+        connectionsRejected.increment();
+    }
+
+    public void messageRejected(Utils.MessageType type) {
+        messagesRejected[type.ordinal()].increment();
+    }
+
+    public void floodDisconnected() {
+        floodDisconnects.increment();
+    }
+
+    public void messageWritten() {
+        messagesWritten.increment();
+    }
+
+    public void socketFlushed() {
+        socketFlushes.increment();
+    }
+
+    public long getConnectionsReaped() {
+        return connectionsReaped.sum();
+    }
+
+    public long getReadTimeouts() {
+        return readTimeouts.sum();
+    }
+
+    public long getSpectatorsDropped() {
+        return spectatorsDropped.sum();
+    }
+
+    public long getPlayersDropped() {
+        return playersDropped.sum();
+    }
+
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+
+    public long getSpectatorFrames() {
+        return spectatorFrames.sum();
+    }
+
+    public long getWalRecords() {
+        return walRecords.sum();
+    }
+
+    public long getWalForces() {
+        return walForces.sum();
+    }
+
+    public long getGamesQueued() {
+        return gamesQueued.sum();
+    }
+
+    public long getGamesPersisted() {
+        return gamesPersisted.sum();
+    }
+
+    public long getGamesPersistenceFailed() {
+        return gamesPersistenceFailed.sum();
+    }
+
+    public long getGamesPersistenceDropped() {
+        return gamesPersistenceDropped.sum();
+    }
+
+    public long getPersistenceQueueHighWater() {
+        return persistenceQueueHighWater.get();
+    }
+
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    public long getMessagesRejected(Utils.MessageType type) {
+        return messagesRejected[type.ordinal()].sum();
+    }
+
+    public long getMessagesRejected() {
+        long total = 0;
+        for (LongAdder rejected : messagesRejected) {
+            total += rejected.sum();
+        }
+        return total;
+    }
+
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    public long getMessagesWritten() {
+        return messagesWritten.sum();
+    }
+
+    public long getSocketFlushes() {
+        return socketFlushes.sum();
+    }
+
+    // rejected counts of the types that had any, e.g. "{MOVE=12, LOGIN=3}"
+    private String rejectedByType() {
+        StringBuilder builder = new StringBuilder("{");
+        for (Utils.MessageType type : Utils.MessageType.values()) {
+            long rejected = getMessagesRejected(type);
+            if (rejected > 0) {
+                if (builder.length() > 1) {
+                    builder.append(", ");
+                }
+                builder.append(type).append('=').append(rejected);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "ServerMetrics{connectionsReaped=" + getConnectionsReaped() +
+                ", readTimeouts=" + getReadTimeouts() +
+                ", spectatorsDropped=" + getSpectatorsDropped() +
+                ", spectatorFrames=" + getSpectatorFrames() +
+                ", playersDropped=" + getPlayersDropped() +
+                ", writeTimeouts=" + getWriteTimeouts() +
+                ", connectionsRejected=" + getConnectionsRejected() +
+                ", messagesRejected=" + rejectedByType() +
+                ", floodDisconnects=" + getFloodDisconnects() +
+                ", messagesWritten=" + getMessagesWritten() +
+                ", socketFlushes=" + getSocketFlushes() +
+                ", walRecords=" + getWalRecords() +
+                ", walForces=" + getWalForces() +
+                ", gamesQueued=" + getGamesQueued() +
+                ", gamesPersisted=" + getGamesPersisted() +
+                ", gamesPersistenceFailed=" + getGamesPersistenceFailed() +
+                ", gamesPersistenceDropped=" + getGamesPersistenceDropped() +
+                ", persistenceQueueHighWater=" + getPersistenceQueueHighWater() + "}";
+    }
+}
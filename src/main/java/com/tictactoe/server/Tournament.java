@@ -0,0 +1,299 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+import com.tictactoe.game.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+// a tournament between registered players. all games of a round run at once as
+// normal game sessions; when the last one ends the next round is paired. pairing
+// and standings run on the tournament mailbox, never on a session thread, and the
+// standings are updated game by game instead of being recomputed
+public class Tournament implements Mailbox.Handler<Tournament.Result> {
+    public enum Format {
+        ROUND_ROBIN,    // everybody plays everybody once
+        SWISS           // players with the same score meet, no rematches
+    }
+
+    // points for a game, in half points so a tie is a whole number
+    private static final int WIN_POINTS = 2;
+    private static final int TIE_POINTS = 1;
+
+    // a finished game, posted by the session that played it
+    public static class Result {
+        private final long sessionId;
+        // 1 or 2 for the winning seat, 0 for a tie
+        private final int winner;
+
+        private Result(long sessionId, int winner) {
+            this.sessionId = sessionId;
+            this.winner = winner;
+        }
+    }
+
+    // a registered player
+    private static class Entrant {
+        private final int index;
+        private final ClientHandler handler;
+        private final String name;
+        private int points;
+        private int wins;
+        private int gamesAsX;
+        private boolean hadBye;
+        private final Set<Integer> opponents = new HashSet<>();
+
+        private Entrant(int index, ClientHandler handler, String name) {
+            this.index = index;
+            this.handler = handler;
+            this.name = name;
+        }
+    }
+
+    private final long id;
+    private final Server server;
+    private final Format format;
+    private final int boardSize;
+    private final int rounds;
+    private final int standingsTop;
+    private final Entrant[] entrants;
+    private final Mailbox<Result> mailbox;
+
+    private int round;
+    // games of the running round by session id, as {entrant of seat 1, entrant of seat 2}
+    private final Map<Long, int[]> games;
+
+    // creates a tournament, start() plays the first round
+    public Tournament(long id, Server server, Format format, int boardSize, List<ClientHandler> handlers,
+                      List<String> names, Executor executor) {
+        this.id = id;
+        this.server = server;
+        this.format = format;
+        this.boardSize = boardSize;
+        this.entrants = new Entrant[handlers.size()];
+        for (int i = 0; i < entrants.length; i++) {
+            entrants[i] = new Entrant(i, handlers.get(i), names.get(i));
+        }
+        int swissRounds = ServerConfig.getInt("tournament.swissRounds", 0);
+        if (format == Format.ROUND_ROBIN) {
+            this.rounds = entrants.length % 2 == 0 ? entrants.length - 1 : entrants.length;
+        } else {
+            // enough rounds to separate the field unless configured
+            this.rounds = swissRounds > 0 ? swissRounds : 32 - Integer.numberOfLeadingZeros(entrants.length - 1);
+        }
+        this.standingsTop = ServerConfig.getInt("tournament.standingsTop", 10);
+        this.mailbox = new Mailbox<>(executor, this);
+        this.games = new HashMap<>();
+    }
+
+    // pairs and starts the first round on the tournament executor, a result
+    // without a game while no game is running moves on to the next round
+    public void start() {
+        mailbox.post(new Result(-1, 0));
+    }
+
+    // called by a session of this tournament when its game is over, on the session thread
+    public void gameEnded(long sessionId, int winner) {
+        mailbox.post(new Result(sessionId, winner));
+    }
+
+    @Override
+    public void handle(Result result) {
+        if (result.sessionId >= 0) {
+            recordResult(result);
+        }
+        if (games.isEmpty()) {
+            if (round > 0) {
+                sendStandings(round == rounds);
+            }
+            if (round < rounds) {
+                startRound();
+            } else {
+                System.out.println("Tournament " + id + " finished after " + rounds + " rounds");
+            }
+        }
+    }
+
+    // updates the standings with one game
+    private void recordResult(Result result) {
+        int[] seats = games.remove(result.sessionId);
+        if (seats == null) {
+            return;
+        }
+        if (result.winner == 0) {
+            entrants[seats[0]].points += TIE_POINTS;
+            entrants[seats[1]].points += TIE_POINTS;
+        } else {
+            Entrant winner = entrants[seats[result.winner - 1]];
+            winner.points += WIN_POINTS;
+            winner.wins++;
+        }
+    }
+
+    // pairs the next round and starts all of its games
+    private void startRound() {
+        round++;
+        List<int[]> pairings = format == Format.ROUND_ROBIN ? pairRoundRobin() : pairSwiss();
+        System.out.println("Tournament " + id + " round " + round + "/" + rounds + ": " + pairings.size() + " games");
+
+        for (int[] pairing : pairings) {
+            Entrant first = entrants[pairing[0]];
+            Entrant second = entrants[pairing[1]];
+            first.opponents.add(second.index);
+            second.opponents.add(first.index);
+
+            // the player that had X less often plays X
+            if (second.gamesAsX < first.gamesAsX) {
+                Entrant swap = first;
+                first = second;
+                second = swap;
+            }
+            first.gamesAsX++;
+            games.put(startGame(first, second), new int[] {first.index, second.index});
+        }
+
+        // every pairing may have been a bye
+        if (games.isEmpty()) {
+            handle(new Result(-1, 0));
+        }
+    }
+
+    private long startGame(Entrant first, Entrant second) {
+        GameSession gameSession = server.startSession(boardSize, first.handler, new Player(first.name),
+                second.handler, new Player(second.name), this::gameEnded);
+        return gameSession.getId();
+    }
+
+    // circle method: entrant 0 stays, the others rotate one place per round.
+    // with an odd field the missing seat is a bye
+    private List<int[]> pairRoundRobin() {
+        int n = entrants.length % 2 == 0 ? entrants.length : entrants.length + 1;
+        List<int[]> pairings = new ArrayList<>(n / 2);
+        for (int i = 0; i < n / 2; i++) {
+            int a = i == 0 ? 0 : rotate(i, n);
+            int b = rotate(n - 1 - i, n);
+            if (a >= entrants.length) {
+                bye(entrants[b]);
+            } else if (b >= entrants.length) {
+                bye(entrants[a]);
+            } else {
+                pairings.add(new int[] {a, b});
+            }
+        }
+        return pairings;
+    }
+
+    // the entrant on a seat of the circle in the current round
+    private int rotate(int seat, int n) {
+        return 1 + (seat - 1 + round - 1) % (n - 1);
+    }
+
+    // players sorted by score, each paired with the best placed player it did not meet yet
+    private List<int[]> pairSwiss() {
+        Entrant[] ranked = rank();
+        boolean[] paired = new boolean[entrants.length];
+        List<int[]> pairings = new ArrayList<>(entrants.length / 2);
+
+        // with an odd field the lowest placed player without a bye sits out
+        if (ranked.length % 2 == 1) {
+            Entrant sitter = ranked[ranked.length - 1];
+            for (int i = ranked.length - 1; i >= 0; i--) {
+                if (!ranked[i].hadBye) {
+                    sitter = ranked[i];
+                    break;
+                }
+            }
+            paired[sitter.index] = true;
+            bye(sitter);
+        }
+
+        for (int i = 0; i < ranked.length; i++) {
+            Entrant player = ranked[i];
+            if (paired[player.index]) {
+                continue;
+            }
+            // the first free player it has not met, or the first free one if it met them all
+            Entrant opponent = null;
+            Entrant fallback = null;
+            for (int j = i + 1; j < ranked.length && opponent == null; j++) {
+                Entrant candidate = ranked[j];
+                if (paired[candidate.index]) {
+                    continue;
+                }
+                if (fallback == null) {
+                    fallback = candidate;
+                }
+                if (!player.opponents.contains(candidate.index)) {
+                    opponent = candidate;
+                }
+            }
+            if (opponent == null) {
+                opponent = fallback;
+            }
+            if (opponent == null) {
+                break;
+            }
+            paired[player.index] = true;
+            paired[opponent.index] = true;
+            pairings.add(new int[] {player.index, opponent.index});
+        }
+        return pairings;
+    }
+
+    // a player without an opponent this round gets the points of a win
+    private void bye(Entrant entrant) {
+        entrant.hadBye = true;
+        entrant.points += WIN_POINTS;
+    }
+
+    // entrants by points, then wins, then registration order
+    private Entrant[] rank() {
+        Entrant[] ranked = entrants.clone();
+        Arrays.sort(ranked, (a, b) -> {
+            if (a.points != b.points) {
+                return Integer.compare(b.points, a.points);
+            }
+            if (a.wins != b.wins) {
+                return Integer.compare(b.wins, a.wins);
+            }
+            return Integer.compare(a.index, b.index);
+        });
+        return ranked;
+    }
+
+    // sends every entrant the top of the table and its own place. the top is built
+    // once and shared, so a big field costs one small message per player
+    private void sendStandings(boolean last) {
+        Entrant[] ranked = rank();
+        int top = Math.min(standingsTop, ranked.length);
+        String[] names = new String[top];
+        int[] points = new int[top];
+        for (int i = 0; i < top; i++) {
+            names[i] = ranked[i].name;
+            points[i] = ranked[i].points;
+        }
+
+        for (int rank = 0; rank < ranked.length; rank++) {
+            Utils.Message message = new Utils.Message(Utils.MessageType.STANDINGS);
+            message.set(Utils.Field.TOURNAMENT_ID, id);
+            message.set(Utils.Field.ROUND, round);
+            message.set(Utils.Field.ROUNDS, rounds);
+            message.set(Utils.Field.FINAL, last);
+            message.set(Utils.Field.STANDINGS_NAMES, names);
+            message.set(Utils.Field.STANDINGS_POINTS, points);
+            message.set(Utils.Field.RANK, rank + 1);
+            message.set(Utils.Field.POINTS, ranked[rank].points);
+            ranked[rank].handler.sendMessage(message);
+        }
+    }
+
+    public long getId() {
+        return id;
+    }
+}
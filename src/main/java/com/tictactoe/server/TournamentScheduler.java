@@ -0,0 +1,85 @@
+package com.tictactoe.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// collects registrations and starts a tournament whenever tournament.size players
+// registered for the same board size. tournaments pair and rank on their own
+// small executor, away from the session and connection threads
+public class TournamentScheduler {
+    // register's answer to a connection that already waits for a tournament
+    public static final int ALREADY_REGISTERED = -1;
+
+    private final Server server;
+    private final int size;
+    private final Tournament.Format format;
+    private final ExecutorService executor;
+    private final AtomicLong nextTournamentId;
+
+    // players registered for the next tournament, by board size
+    private final Map<Integer, List<ClientHandler>> registeredHandlers;
+    private final Map<Integer, List<String>> registeredNames;
+
+    public TournamentScheduler(Server server) {
+        this.server = server;
+        this.size = Math.max(2, ServerConfig.getInt("tournament.size", 8));
+        this.format = Tournament.Format.valueOf(ServerConfig.getProperty("tournament.format", "SWISS").trim());
+        this.executor = Executors.newFixedThreadPool(ServerConfig.getInt("tournament.threads", 1));
+        this.nextTournamentId = new AtomicLong(1);
+        this.registeredHandlers = new HashMap<>();
+        this.registeredNames = new HashMap<>();
+    }
+
+    // registers a player, returns the number of players still missing for the tournament to
+    // start, or ALREADY_REGISTERED. a connection waits for one tournament at a time, so
+    // a tournament never pairs a connection against itself
+    public int register(ClientHandler handler, String name, int boardSize) {
+        List<ClientHandler> handlers;
+        List<String> names;
+        synchronized (this) {
+            for (List<ClientHandler> waiting : registeredHandlers.values()) {
+                if (waiting.contains(handler)) {
+                    return ALREADY_REGISTERED;
+                }
+            }
+            handlers = registeredHandlers.computeIfAbsent(boardSize, key -> new ArrayList<>());
+            names = registeredNames.computeIfAbsent(boardSize, key -> new ArrayList<>());
+            handlers.add(handler);
+            names.add(name);
+            if (handlers.size() < size) {
+                return size - handlers.size();
+            }
+            registeredHandlers.remove(boardSize);
+            registeredNames.remove(boardSize);
+        }
+
+        Tournament tournament = new Tournament(nextTournamentId.getAndIncrement(), server, format, boardSize,
+                handlers, names, executor);
+        System.out.println("Starting " + format + " tournament " + tournament.getId() + " with " + size + " players");
+        tournament.start();
+        return 0;
+    }
+
+    // removes the registrations of a connection that went away before its tournament started
+    public synchronized void unregister(ClientHandler handler) {
+        for (Map.Entry<Integer, List<ClientHandler>> entry : registeredHandlers.entrySet()) {
+            List<ClientHandler> handlers = entry.getValue();
+            List<String> names = registeredNames.get(entry.getKey());
+            for (int i = handlers.size() - 1; i >= 0; i--) {
+                if (handlers.get(i) == handler) {
+                    handlers.remove(i);
+                    names.remove(i);
+                }
+            }
+        }
+    }
+
+    public void stop() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,406 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// append-only log of the live games of this node, so they survive a crash of the
+// server process. the file is memory-mapped: a record is in the page cache as soon
+// as it is written, which is enough for a process crash. a flusher thread forces
+// the dirty pages to disk every wal.flushIntervalMs (group commit), bounding what
+// an OS crash or power loss can take. on startup the log is replayed and compacted
+// to the records of the games that did not end.
+//
+// records are 128 bytes:
+//   0 type, 1 board size (CREATE) or row (MOVE), 2 col (MOVE), 3-4 name lengths (CREATE)
+//   8 session id, 16 move number (MOVE), 20 CRC32 of the record with this field zero
+//   CREATE: 24 token 1, 40 token 2 (16 random bytes each), 56 start time,
+//           64 name 1, 96 name 2 (UTF-8, Utils.MAX_NAME_BYTES each)
+//   MOVE:   24 match time left of the player that moved, in nanoseconds
+public class WriteAheadLog {
+    public static final int RECORD_SIZE = 128;
+
+    private static final byte TYPE_CREATE = 1;
+    private static final byte TYPE_MOVE = 2;
+    private static final byte TYPE_END = 3;
+    private static final int CRC_OFFSET = 20;
+    private static final int NAME_BYTES = Utils.MAX_NAME_BYTES;
+
+    // the state of a game read back from the log
+    public static class RecoveredSession {
+        private final long id;
+        private final int boardSize;
+        private final long startTime;
+        private final String player1Name;
+        private final String player2Name;
+        private final String player1Token;
+        private final String player2Token;
+        private final List<int[]> moves = new ArrayList<>();
+        private long player1TimeLeft = -1;
+        private long player2TimeLeft = -1;
+        // the raw records, written again when the log is compacted
+        private final List<byte[]> records = new ArrayList<>();
+
+        private RecoveredSession(long id, int boardSize, long startTime, String player1Name, String player2Name,
+                                 String player1Token, String player2Token) {
+            this.id = id;
+            this.boardSize = boardSize;
+            this.startTime = startTime;
+            this.player1Name = player1Name;
+            this.player2Name = player2Name;
+            this.player1Token = player1Token;
+            this.player2Token = player2Token;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getBoardSize() {
+            return boardSize;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public String getPlayer1Name() {
+            return player1Name;
+        }
+
+        public String getPlayer2Name() {
+            return player2Name;
+        }
+
+        public String getPlayer1Token() {
+            return player1Token;
+        }
+
+        public String getPlayer2Token() {
+            return player2Token;
+        }
+
+        // moves in order, as {row, col}
+        public List<int[]> getMoves() {
+            return moves;
+        }
+
+        // match time left of player 1 after its last move, -1 if it did not move yet
+        public long getPlayer1TimeLeft() {
+            return player1TimeLeft;
+        }
+
+        public long getPlayer2TimeLeft() {
+            return player2TimeLeft;
+        }
+    }
+
+    private final Path path;
+    private final int nodeId;
+    private final long flushIntervalMs;
+    private final ServerMetrics metrics;
+
+    private FileChannel channel;
+    private volatile MappedByteBuffer buffer;
+    private int position;
+    // sessions with a CREATE and no END, only they are kept by a compaction
+    private final Set<Long> liveSessions;
+
+    private volatile boolean dirty;
+    private volatile boolean running;
+    private Thread flusher;
+
+    // every record is built in this buffer and checked with this CRC, both only
+    // under the lock of the log
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    // creates a log at the given path, open() reads it back
+    public WriteAheadLog(Path path, int nodeId, ServerMetrics metrics) {
+        this.path = path;
+        this.nodeId = nodeId;
+        this.flushIntervalMs = ServerConfig.getLong("wal.flushIntervalMs", 10);
+        this.metrics = metrics;
+        this.liveSessions = ConcurrentHashMap.newKeySet();
+    }
+
+    // replays the log, compacts it to the games that are still live and starts
+    // the flusher. returns the live games so the server can restore them
+    public synchronized List<RecoveredSession> open() throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Map<Long, RecoveredSession> recovered = Files.exists(path) ? replay() : new LinkedHashMap<>();
+
+        long size = ServerConfig.getLong("wal.sizeBytes", 16 * 1024 * 1024);
+        List<byte[]> records = new ArrayList<>();
+        for (RecoveredSession session : recovered.values()) {
+            records.addAll(session.records);
+            liveSessions.add(session.id);
+        }
+        rewrite(records, size);
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return new ArrayList<>(recovered.values());
+    }
+
+    // reads all intact records, a torn record at the end (crash during a write) ends the log
+    private Map<Long, RecoveredSession> replay() throws IOException {
+        Map<Long, RecoveredSession> sessions = new LinkedHashMap<>();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            while (true) {
+                record.clear();
+                while (record.hasRemaining()) {
+                    if (in.read(record) < 0) {
+                        break;
+                    }
+                }
+                if (record.hasRemaining() || record.get(0) == 0 || !checkCrc(record.array())) {
+                    break;
+                }
+                apply(sessions, record.array().clone());
+            }
+        }
+        return sessions;
+    }
+
+    private void apply(Map<Long, RecoveredSession> sessions, byte[] bytes) {
+        ByteBuffer record = ByteBuffer.wrap(bytes);
+        long id = record.getLong(8);
+        switch (record.get(0)) {
+            case TYPE_CREATE:
+                RecoveredSession created = new RecoveredSession(id, record.get(1), record.getLong(56),
+                        new String(bytes, 64, record.get(3), StandardCharsets.UTF_8),
+                        new String(bytes, 96, record.get(4), StandardCharsets.UTF_8),
+                        toToken(bytes, 24), toToken(bytes, 40));
+                created.records.add(bytes);
+                sessions.put(id, created);
+                break;
+            case TYPE_MOVE:
+                RecoveredSession session = sessions.get(id);
+                if (session == null) {
+                    break;
+                }
+                // X makes the odd moves
+                if (record.getInt(16) % 2 == 1) {
+                    session.player1TimeLeft = record.getLong(24);
+                } else {
+                    session.player2TimeLeft = record.getLong(24);
+                }
+                session.moves.add(new int[] {record.get(1), record.get(2)});
+                session.records.add(bytes);
+                break;
+            case TYPE_END:
+                sessions.remove(id);
+                break;
+        }
+    }
+
+    // a game started, called on the session thread before any of its moves
+    public synchronized void logCreate(long id, int boardSize, long startTime, String player1Name,
+                                       String player2Name, String player1Token, String player2Token) {
+        clearRecord();
+        byte[] name1 = toBytes(player1Name);
+        byte[] name2 = toBytes(player2Name);
+        record.put(0, TYPE_CREATE);
+        record.put(1, (byte) boardSize);
+        record.put(3, (byte) name1.length);
+        record.put(4, (byte) name2.length);
+        record.putLong(8, id);
+        record.put(24, fromToken(player1Token));
+        record.put(40, fromToken(player2Token));
+        record.putLong(56, startTime);
+        record.put(64, name1);
+        record.put(96, name2);
+        liveSessions.add(id);
+        append();
+    }
+
+    // a move was accepted, moveNumber counts from 1
+    public synchronized void logMove(long id, int moveNumber, int row, int col, long timeLeftNanos) {
+        clearRecord();
+        record.put(0, TYPE_MOVE);
+        record.put(1, (byte) row);
+        record.put(2, (byte) col);
+        record.putLong(8, id);
+        record.putInt(16, moveNumber);
+        record.putLong(24, timeLeftNanos);
+        append();
+    }
+
+    // a game ended, it is not restored anymore
+    public synchronized void logEnd(long id) {
+        clearRecord();
+        record.put(0, TYPE_END);
+        record.putLong(8, id);
+        liveSessions.remove(id);
+        append();
+    }
+
+    // zeroes the record buffer, fields a type does not use stay zero
+    private void clearRecord() {
+        Arrays.fill(record.array(), (byte) 0);
+    }
+
+    // copies the record buffer into the mapped file, a full file is compacted first.
+    // holds the lock
+    private void append() {
+        if (!running) {
+            return;
+        }
+        crc.reset();
+        crc.update(record.array());
+        record.putInt(CRC_OFFSET, (int) crc.getValue());
+
+        try {
+            if (position + RECORD_SIZE > buffer.capacity()) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Error compacting write-ahead log, record dropped: " + e.getMessage());
+            return;
+        }
+        buffer.put(position, record.array());
+        position += RECORD_SIZE;
+        dirty = true;
+        metrics.walRecordWritten();
+    }
+
+    // keeps only the records of the live games, at runtime this happens when the file is full
+    private void compact() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        byte[] record = new byte[RECORD_SIZE];
+        for (int offset = 0; offset + RECORD_SIZE <= position; offset += RECORD_SIZE) {
+            buffer.get(offset, record);
+            if (record[0] != TYPE_END && liveSessions.contains(ByteBuffer.wrap(record).getLong(8))) {
+                records.add(record.clone());
+            }
+        }
+        // a log that is mostly live games grows instead of compacting again right away
+        long size = Math.max(buffer.capacity(), 2L * (records.size() + 1) * RECORD_SIZE);
+        buffer.force();
+        rewrite(records, size);
+        System.out.println("Compacted write-ahead log to " + records.size() + " records");
+    }
+
+    // writes the records to a new file, replaces the log with it and maps it
+    private void rewrite(List<byte[]> records, long size) throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (byte[] record : records) {
+                ByteBuffer source = ByteBuffer.wrap(record);
+                while (source.hasRemaining()) {
+                    out.write(source);
+                }
+            }
+            out.force(true);
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // the rest of the file is zero, a zero type marks the end of the log
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        position = records.size() * RECORD_SIZE;
+    }
+
+    // group commit: one force covers every record written since the last one
+    private void flushLoop() {
+        while (running) {
+            try {
+                Thread.sleep(flushIntervalMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            flush();
+        }
+    }
+
+    // the buffer is taken under the lock compact() holds while it swaps it, the force
+    // runs outside it so appends do not wait for the disk. a compaction that swaps
+    // the buffer in the meantime forced the old one itself
+    private void flush() {
+        MappedByteBuffer dirtyBuffer;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            dirtyBuffer = buffer;
+        }
+        dirtyBuffer.force();
+        metrics.walForced();
+    }
+
+    // forces what is left and closes the file
+    public synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing write-ahead log: " + e.getMessage());
+        }
+    }
+
+    private static boolean checkCrc(byte[] record) {
+        int expected = ByteBuffer.wrap(record).getInt(CRC_OFFSET);
+        ByteBuffer.wrap(record).putInt(CRC_OFFSET, 0);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        ByteBuffer.wrap(record).putInt(CRC_OFFSET, expected);
+        return (int) crc.getValue() == expected;
+    }
+
+    // the name as UTF-8. LOGIN and TOURNAMENT refuse longer names, the cut only keeps
+    // the record layout safe, without splitting a character
+    private static byte[] toBytes(String name) {
+        String cut = name;
+        byte[] bytes = cut.getBytes(StandardCharsets.UTF_8);
+        while (bytes.length > NAME_BYTES) {
+            cut = cut.substring(0, cut.length() - 1);
+            bytes = cut.getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    // the random part of a resume token, the node id is the same for the whole log
+    private static byte[] fromToken(String token) {
+        return HexFormat.of().parseHex(token.substring(token.indexOf(':') + 1));
+    }
+
+    private String toToken(byte[] record, int offset) {
+        return nodeId + ":" + HexFormat.of().formatHex(record, offset, offset + 16);
+    }
+
+    // the log file of a node, nodes of a cluster on one machine need their own file
+    public static Path getPath(int nodeId) {
+        return Path.of(ServerConfig.getProperty("wal.dir", "wal"), "node-" + nodeId + ".wal");
+    }
+}
@@ -4,6 +4,7 @@ import com.tictactoe.Utils;
 import com.tictactoe.client.Client;
 import com.tictactoe.db.DatabaseManager;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.stage.Stage;
 
 public class App extends Application {
@@ -44,6 +45,15 @@ public class App extends Application {
                 case GAME_START:
                     showGameScreen();
                     break;
+                case RESYNC:
+                    // a RESYNC for the game on screen only repairs its board, the
+                    // timer keeps running
+                    if (gameScreen == null || primaryStage.getScene() != gameScreen.getScene()
+                            || gameScreen.getBoardSize() != client.getBoardSize()) {
+                        showGameScreen();
+                    }
+                    gameScreen.handleResync(message);
+                    break;
                 case MOVE_RESULT:
                     if (gameScreen != null) {
                         gameScreen.handleMoveResult(message);
@@ -52,7 +62,13 @@ public class App extends Application {
                 case GAME_OVER:
                     showGameOverScreen(message);
                     break;
+                case BUSY:
                 case ERROR:
+                    // the client took back a refused move already
+                    if (message.getType() == Utils.MessageType.ERROR && gameScreen != null
+                            && primaryStage.getScene() == gameScreen.getScene()) {
+                        gameScreen.redrawBoard();
+                    }
                     if (loginScreen != null) {
                         loginScreen.showError((String) message.getData(Utils.Keys.MESSAGE));
                     }
@@ -60,6 +76,27 @@ public class App extends Application {
             }
         });
 
+        client.setConnectionListener(state -> Platform.runLater(() -> {
+            switch (state) {
+                case RECONNECTING:
+                    if (gameScreen != null && primaryStage.getScene() == gameScreen.getScene()) {
+                        gameScreen.showReconnecting();
+                    }
+                    break;
+                case RECONNECTED:
+                    // the server sends the game state or WAIT again
+                    break;
+                case DISCONNECTED:
+                    if (gameScreen != null) {
+                        gameScreen.stopGame();
+                    }
+                    showLoginScreen();
+                    loginScreen.showError("Lost the connection to the server");
+                    client.connect();
+                    break;
+            }
+        }));
+
         // Connect to server
         boolean connected = client.connect();
         if (!connected) {
@@ -133,10 +170,8 @@ public class App extends Application {
 
     @Override
     public void stop() {
-        // Disconnect from server when application closes
-        if (client.isConnected()) {
-            client.disconnect();
-        }
+        // Disconnect from server when application closes, this also stops a reconnect
+        client.disconnect();
 
         // Stop the game if it's running
         if (gameScreen != null) {
@@ -1,6 +1,7 @@
 package com.tictactoe.ui;
 
 import com.tictactoe.Utils;
+import com.tictactoe.game.Board;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -33,6 +34,9 @@ public class GameScreen {
     private long gameStartTime;
     private Timer gameTimer;
 
+    // a move the server has not confirmed yet
+    private static final String PENDING_STYLE = "-fx-text-fill: gray;";
+
     // creates a new game screen
     public GameScreen(App app, int boardSize) {
         this.app = app;
@@ -78,13 +82,7 @@ public class GameScreen {
 
                 final int finalRow = row;
                 final int finalCol = col;
-                button.setOnAction(event -> {
-                    if (app.getClient().isMyTurn()) {
-                        button.setText(String.valueOf(app.getClient().getPlayerSymbol()));
-                        button.setDisable(true);
-                        app.getClient().makeMove(finalRow, finalCol);
-                    }
-                });
+                button.setOnAction(event -> playCell(button, finalRow, finalCol));
 
                 boardButtons[row][col] = button;
                 boardGrid.add(button, col, row);
@@ -132,13 +130,7 @@ public class GameScreen {
 
                 final int finalRow = row;
                 final int finalCol = col;
-                button.setOnAction(e -> {
-                    if (app.getClient().isMyTurn()) {
-                        button.setText(String.valueOf(app.getClient().getPlayerSymbol()));
-                        button.setDisable(true);
-                        app.getClient().makeMove(finalRow, finalCol);
-                    }
-                });
+                button.setOnAction(e -> playCell(button, finalRow, finalCol));
 
                 boardButtons[row][col] = button;
                 boardGrid.add(button, col, row);
@@ -146,6 +138,16 @@ public class GameScreen {
         }
     }
 
+    // moves at once, the symbol is greyed until the server confirms the move
+    private void playCell(Button button, int row, int col) {
+        if (app.getClient().makeMove(row, col)) {
+            button.setText(String.valueOf(app.getClient().getPlayerSymbol()));
+            button.setDisable(true);
+            button.setStyle(PENDING_STYLE);
+            updateGameStatus();
+        }
+    }
+
     public void startGame() {
         updateGameStatus();
         startGameTimer();
@@ -164,21 +166,56 @@ public class GameScreen {
         Button button = boardButtons[row][col];
         button.setText(String.valueOf(symbol));
         button.setDisable(true);
+        button.setStyle("");
+
+        updateGameStatus();
+    }
+
+    // redraws the whole board from the state sent after a resume
+    public void handleResync(Utils.Message message) {
+        redrawBoard();
+    }
+
+    // redraws the whole board as the client has it, after a resume or a refused move
+    public void redrawBoard() {
+        Board board = app.getClient().getBoard();
+        if (board == null || board.getSize() != boardSize) {
+            return;
+        }
+        int[] pending = app.getClient().getPendingMove();
+        for (int row = 0; row < boardSize; row++) {
+            for (int col = 0; col < boardSize; col++) {
+                char symbol = board.getSymbolAt(row, col);
+                Button button = boardButtons[row][col];
+                button.setText(symbol == Utils.SYMBOL_EMPTY ? "" : String.valueOf(symbol));
+                button.setDisable(symbol != Utils.SYMBOL_EMPTY);
+                boolean isPending = pending != null && pending[0] == row && pending[1] == col;
+                button.setStyle(isPending ? PENDING_STYLE : "");
+            }
+        }
 
         updateGameStatus();
     }
 
+    // shown until the client is connected again and the server sent the game state
+    public void showReconnecting() {
+        statusLabel.setText("Connection lost, reconnecting...");
+    }
+
     // updates the game status label
     private void updateGameStatus() {
-        if (app.getClient().isMyTurn()) {
+        if (app.getClient().hasPendingMove()) {
+            statusLabel.setText("Sending your move...");
+        } else if (app.getClient().isMyTurn()) {
             statusLabel.setText("Your turn (" + app.getClient().getPlayerSymbol() + ")");
         } else {
             statusLabel.setText(app.getClient().getOpponentName() + "'s turn (" + app.getClient().getOpponentSymbol() + ")");
         }
     }
 
-    // start the game timer
+    // start the game timer, a timer that still runs is replaced
     private void startGameTimer() {
+        stopGameTimer();
         gameStartTime = System.currentTimeMillis();
         gameTimer = new Timer();
         gameTimer.scheduleAtFixedRate(new TimerTask() {
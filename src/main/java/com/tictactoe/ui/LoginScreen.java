@@ -107,6 +107,10 @@ public class LoginScreen {
             showError("Please enter your name");
             return;
         }
+        if (!Utils.isValidName(name)) {
+            showError("Please enter a shorter name");
+            return;
+        }
 
         // determine selected board size
         int boardSize;
@@ -9,6 +9,7 @@ module com.tictactoe {
     // Export packages
     exports com.tictactoe.client;
     exports com.tictactoe.game;
+    exports com.tictactoe.protocol;
     exports com.tictactoe.server;
     exports com.tictactoe.ui;
     exports com.tictactoe.db;       // Add this for database access
@@ -0,0 +1,186 @@
+package com.tictactoe.server;
+
+import com.tictactoe.Utils;
+import com.tictactoe.game.Game;
+import com.tictactoe.game.Player;
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// the heap the server allocates for a move once it is warmed up. two players on an
+// embedded server with the shipped configuration (write-ahead log and persistence
+// on) play games in lockstep from the test thread; the bytes allocated by all other
+// threads are read from ThreadMXBean before a move is sent and after both players
+// got its MOVE_RESULT. moves that end a game are left out, they also pay for
+// GAME_OVER and the next match
+class MoveAllocationTest {
+    private static final int PORT = 1399;
+    private static final int BOARD_SIZE = 5;
+    private static final int WARM_UP_GAMES = 500;
+    private static final int GAMES = 500;
+    // binary MOVE_RESULTs are encoded into the players' outboxes, the session's
+    // mailbox command is most of what is left
+    private static final long ALLOWED_BYTES_PER_MOVE = 256;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @TempDir
+    static Path walDir;
+    private static Server server;
+
+    // only the port, the log directory and the rate limits differ from the defaults,
+    // the players move as fast as the server answers
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("server.port", String.valueOf(PORT));
+        System.setProperty("wal.dir", walDir.toString());
+        for (Utils.MessageType type : new Utils.MessageType[] {Utils.MessageType.LOGIN, Utils.MessageType.MOVE}) {
+            System.setProperty("rateLimit." + type + ".perSecond", "1000000");
+            System.setProperty("rateLimit." + type + ".burst", "1000000");
+        }
+        server = new Server();
+        Thread serverThread = new Thread(server::start, "embedded-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForListener();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    void binaryMoveStaysWithinBudget() throws IOException {
+        double perMove = measure(Protocol.BINARY);
+        assertTrue(perMove <= ALLOWED_BYTES_PER_MOVE, String.format(
+                "%.1f bytes allocated by the server per move, allowed are %d", perMove, ALLOWED_BYTES_PER_MOVE));
+    }
+
+    // average bytes the server allocated per move
+    private static double measure(Protocol protocol) throws IOException {
+        Random random = new Random(42);
+        long samples = 0;
+        long allocated = 0;
+        try (Socket socket1 = new Socket("localhost", PORT); Socket socket2 = new Socket("localhost", PORT)) {
+            socket1.setTcpNoDelay(true);
+            socket2.setTcpNoDelay(true);
+            MessageChannel player1 = MessageChannel.connect(socket1, protocol);
+            MessageChannel player2 = MessageChannel.connect(socket2, protocol);
+
+            for (int g = 0; g < WARM_UP_GAMES + GAMES; g++) {
+                login(player1, "alloc-1");
+                expect(player1, Utils.MessageType.WAIT);
+                login(player2, "alloc-2");
+                Utils.Message start = expect(player1, Utils.MessageType.GAME_START);
+                expect(player2, Utils.MessageType.GAME_START);
+                long gameId = start.getLong(Utils.Field.GAME_ID);
+                boolean player1Moves = start.getBoolean(Utils.Field.IS_YOUR_TURN);
+
+                Game game = newGame();
+                while (!game.isGameOver()) {
+                    int cell = randomMove(game, random);
+                    Utils.Message move = new Utils.Message(Utils.MessageType.MOVE);
+                    move.set(Utils.Field.GAME_ID, gameId);
+                    move.set(Utils.Field.ROW, cell / BOARD_SIZE);
+                    move.set(Utils.Field.COL, cell % BOARD_SIZE);
+
+                    long before = serverAllocatedBytes();
+                    (player1Moves ? player1 : player2).write(move);
+                    expect(player1, Utils.MessageType.MOVE_RESULT);
+                    expect(player2, Utils.MessageType.MOVE_RESULT);
+                    long after = serverAllocatedBytes();
+
+                    game.makeMove(cell / BOARD_SIZE, cell % BOARD_SIZE);
+                    player1Moves = !player1Moves;
+                    if (g >= WARM_UP_GAMES && !game.isGameOver()) {
+                        allocated += after - before;
+                        samples++;
+                    }
+                }
+                expect(player1, Utils.MessageType.GAME_OVER);
+                expect(player2, Utils.MessageType.GAME_OVER);
+            }
+        }
+        return allocated / (double) Math.max(samples, 1);
+    }
+
+    // the listener is bound at the start of start()
+    private static void waitForListener() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Embedded server did not start on port " + PORT);
+    }
+
+    // bytes allocated so far by every thread but this one, threads that ended are lost,
+    // which the server does not do while games are played
+    private static long serverAllocatedBytes() {
+        long own = Thread.currentThread().getId();
+        long[] ids = THREADS.getAllThreadIds();
+        long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != own && bytes[i] > 0) {
+                total += bytes[i];
+            }
+        }
+        return total;
+    }
+
+    private static void login(MessageChannel channel, String name) throws IOException {
+        Utils.Message login = new Utils.Message(Utils.MessageType.LOGIN);
+        login.set(Utils.Field.PLAYER_NAME, name);
+        login.set(Utils.Field.BOARD_SIZE, BOARD_SIZE);
+        channel.write(login);
+    }
+
+    // reads until a message of the given type, anything unexpected fails the test
+    private static Utils.Message expect(MessageChannel channel, Utils.MessageType type) throws IOException {
+        while (true) {
+            Utils.Message message = channel.read();
+            if (message.getType() == type) {
+                return message;
+            }
+            if (message.getType() != Utils.MessageType.PING) {
+                throw new IOException("Expected " + type + " but got " + message);
+            }
+            channel.write(new Utils.Message(Utils.MessageType.PONG));
+        }
+    }
+
+    private static Game newGame() {
+        Player x = new Player("X");
+        x.setSymbol(Utils.SYMBOL_X);
+        Player o = new Player("O");
+        o.setSymbol(Utils.SYMBOL_O);
+        return new Game(BOARD_SIZE, x, o);
+    }
+
+    private static int randomMove(Game game, Random random) {
+        while (true) {
+            int cell = random.nextInt(BOARD_SIZE * BOARD_SIZE);
+            if (game.isValidMove(cell / BOARD_SIZE, cell % BOARD_SIZE)) {
+                return cell;
+            }
+        }
+    }
+}
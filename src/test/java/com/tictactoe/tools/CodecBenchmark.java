@@ -0,0 +1,150 @@
+package com.tictactoe.tools;
+
+import com.tictactoe.Utils;
+import com.tictactoe.protocol.BinaryCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+// compares the two wire formats for the messages of a running game: bytes per
+// message and the time to encode and decode one. the legacy format is measured
+// as on a connection, one long-lived object stream, so class descriptions are
+// written once per batch and not once per message.
+// usage: CodecBenchmark [rounds]
+public class CodecBenchmark {
+    // distinct messages per batch, an object stream writes a repeated object as a back reference
+    private static final int BATCH = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.printf("%-12s %8s %8s %12s %12s %12s %12s%n", "message", "binary", "legacy",
+                "bin enc ns", "bin dec ns", "leg enc ns", "leg dec ns");
+        for (Utils.MessageType type : new Utils.MessageType[] {Utils.MessageType.MOVE,
+                Utils.MessageType.MOVE_RESULT, Utils.MessageType.GAME_START, Utils.MessageType.GAME_OVER}) {
+            Utils.Message[] batch = new Utils.Message[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                batch[i] = sample(type, i);
+            }
+
+            // the first half warms up the JIT
+            measure(batch, rounds / 2);
+            Result result = measure(batch, rounds);
+            System.out.printf("%-12s %8d %8d %12.0f %12.0f %12.0f %12.0f%n", type,
+                    result.binaryBytes, result.legacyBytes, result.binaryEncodeNanos, result.binaryDecodeNanos,
+                    result.legacyEncodeNanos, result.legacyDecodeNanos);
+        }
+    }
+
+    private static class Result {
+        private long binaryBytes;
+        private long legacyBytes;
+        private double binaryEncodeNanos;
+        private double binaryDecodeNanos;
+        private double legacyEncodeNanos;
+        private double legacyDecodeNanos;
+    }
+
+    // encodes and decodes the batch the given number of times in both formats,
+    // sizes are per message on the wire, times per message
+    private static Result measure(Utils.Message[] batch, int rounds) throws IOException, ClassNotFoundException {
+        Result result = new Result();
+        long operations = (long) rounds * batch.length;
+        long sink = 0;
+
+        byte[][] binary = new byte[batch.length][];
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i < batch.length; i++) {
+                binary[i] = BinaryCodec.encode(batch[i]);
+            }
+        }
+        result.binaryEncodeNanos = (System.nanoTime() - start) / (double) operations;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (byte[] bytes : binary) {
+                sink += BinaryCodec.decode(bytes, BinaryCodec.LENGTH_BYTES,
+                        bytes.length - BinaryCodec.LENGTH_BYTES).getType().ordinal();
+            }
+        }
+        result.binaryDecodeNanos = (System.nanoTime() - start) / (double) operations;
+        for (byte[] bytes : binary) {
+            result.binaryBytes += bytes.length;
+        }
+        result.binaryBytes /= batch.length;
+
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream(batch.length * 512);
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            legacy.reset();
+            ObjectOutputStream out = new ObjectOutputStream(legacy);
+            for (Utils.Message message : batch) {
+                out.writeObject(message);
+            }
+            out.flush();
+        }
+        result.legacyEncodeNanos = (System.nanoTime() - start) / (double) operations;
+        byte[] legacyBytes = legacy.toByteArray();
+        result.legacyBytes = legacyBytes.length / batch.length;
+
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(legacyBytes));
+            for (int i = 0; i < batch.length; i++) {
+                sink += ((Utils.Message) in.readObject()).getType().ordinal();
+            }
+        }
+        result.legacyDecodeNanos = (System.nanoTime() - start) / (double) operations;
+
+        if (sink == 42) {
+            System.out.println();
+        }
+        return result;
+    }
+
+    // a message as a game sends it, i makes every copy a different object with different values
+    private static Utils.Message sample(Utils.MessageType type, int i) {
+        Utils.Message message = new Utils.Message(type);
+        long gameId = 1000 + i;
+        switch (type) {
+            case MOVE:
+                message.set(Utils.Field.GAME_ID, gameId);
+                message.set(Utils.Field.ROW, i % 3);
+                message.set(Utils.Field.COL, i / 3 % 3);
+                break;
+            case MOVE_RESULT:
+                message.set(Utils.Field.GAME_ID, gameId);
+                message.set(Utils.Field.ROW, i % 3);
+                message.set(Utils.Field.COL, i / 3 % 3);
+                message.set(Utils.Field.SYMBOL, Utils.SYMBOL_X);
+                message.set(Utils.Field.NEXT_TURN, "player-" + i);
+                message.set(Utils.Field.NEXT_SYMBOL, Utils.SYMBOL_O);
+                message.set(Utils.Field.MOVE_SEQ, i % 9 + 1);
+                break;
+            case GAME_START:
+                message.set(Utils.Field.GAME_ID, gameId);
+                message.set(Utils.Field.BOARD_SIZE, 3);
+                message.set(Utils.Field.PLAYER_SYMBOL, Utils.SYMBOL_X);
+                message.set(Utils.Field.OPPONENT_NAME, "player-" + i);
+                message.set(Utils.Field.OPPONENT_SYMBOL, Utils.SYMBOL_O);
+                message.set(Utils.Field.IS_YOUR_TURN, true);
+                message.set(Utils.Field.TURN_TIMEOUT, 30000L);
+                message.set(Utils.Field.RESUME_TOKEN, "0:0123456789abcdef0123456789abcdef");
+                break;
+            case GAME_OVER:
+                message.set(Utils.Field.GAME_ID, gameId);
+                message.set(Utils.Field.RESULT, "win");
+                message.set(Utils.Field.WINNER, "player-" + i);
+                message.set(Utils.Field.GAME_DURATION, 12345L + i);
+                message.set(Utils.Field.REASON, "normal");
+                break;
+            default:
+                break;
+        }
+        return message;
+    }
+}
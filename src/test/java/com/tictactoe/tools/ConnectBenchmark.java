@@ -0,0 +1,90 @@
+package com.tictactoe.tools;
+
+import com.tictactoe.Utils;
+
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// measures how fast a server takes new connections, like a storm of clients
+// reconnecting after a restart. every connection does the full stream handshake
+// (both object stream headers), sends a PING and is closed once the server answered.
+// the server writes its stream header before a BUSY too, so only a PONG counts as
+// a connection it took.
+// usage: ConnectBenchmark [host] [port] [connections] [threads]
+public class ConnectBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : Utils.SERVER_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Utils.SERVER_PORT;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        long[] latencies = new long[connections];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < connections) {
+                    long begin = System.nanoTime();
+                    Utils.MessageType answer = connect(host, port);
+                    if (answer == Utils.MessageType.PONG) {
+                        latencies[i] = System.nanoTime() - begin;
+                        continue;
+                    }
+                    latencies[i] = -1;
+                    if (answer == Utils.MessageType.BUSY) {
+                        busy.incrementAndGet();
+                    } else if (answer == Utils.MessageType.ERROR) {
+                        refused.incrementAndGet();
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }, "connect-" + t).start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+
+        long[] succeeded = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        System.out.printf("%d connections with %d threads in %.2f s: %.0f connects/s, %d accepted, %d busy, %d refused, %d failed%n",
+                connections, threads, elapsed / 1e9, connections / (elapsed / 1e9), succeeded.length,
+                busy.get(), refused.get(), failures.get());
+        if (succeeded.length > 0) {
+            System.out.printf("handshake latency p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms%n",
+                    percentile(succeeded, 0.50), percentile(succeeded, 0.99),
+                    percentile(succeeded, 0.999), succeeded[succeeded.length - 1] / 1e6);
+        }
+    }
+
+    // opens a connection, sends a PING and returns the type of the first message the
+    // server sent back, or null if the connection failed
+    private static Utils.MessageType connect(String host, int port) {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(10000);
+            MessageChannel channel = MessageChannel.connect(socket, Protocol.LEGACY);
+            channel.write(new Utils.Message(Utils.MessageType.PING));
+            return channel.read().getType();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // percentile of sorted nanosecond values, in milliseconds
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
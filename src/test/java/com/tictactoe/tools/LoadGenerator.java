@@ -0,0 +1,267 @@
+package com.tictactoe.tools;
+
+import com.tictactoe.Utils;
+import com.tictactoe.game.Game;
+import com.tictactoe.game.Player;
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
+import com.tictactoe.server.Server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// puts a server under load with virtual players. every player logs in, waits to
+// be matched, plays random legal moves until the game is over and disconnects,
+// as many times as asked. prints logins, matches and moves per second while it
+// runs and the move round trip (MOVE sent until its MOVE_RESULT) at the end.
+// with "embedded" as host a server is started in this JVM.
+// usage: LoadGenerator [host|embedded] [port] [players] [games per player] [board size] [ramp up ms] [binary|legacy]
+public class LoadGenerator {
+    // a player thread only blocks on its socket, it does not need a big stack
+    private static final long PLAYER_STACK_SIZE = 256 * 1024;
+
+    private static final LongAdder logins = new LongAdder();
+    private static final LongAdder matches = new LongAdder();
+    private static final LongAdder moves = new LongAdder();
+    private static final LongAdder games = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    // move round trips of the players that are done, in nanoseconds
+    private static final List<long[]> latencies = new ArrayList<>();
+    // null unless the server runs in this JVM
+    private static Server embeddedServer;
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : Utils.SERVER_HOST;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Utils.SERVER_PORT;
+        int players = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int gamesPerPlayer = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int boardSize = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+        long rampUpMs = args.length > 5 ? Long.parseLong(args[5]) : 1000;
+        Protocol protocol = args.length > 6 ? Protocol.valueOf(args[6].toUpperCase()) : Protocol.BINARY;
+
+        if (host.equals("embedded")) {
+            host = startEmbeddedServer(port);
+        }
+
+        CountDownLatch done = new CountDownLatch(players);
+        long start = System.nanoTime();
+        Thread reporter = new Thread(() -> report(start), "load-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+
+        // players start spread over the ramp up, not all in the same millisecond
+        for (int i = 0; i < players; i++) {
+            String name = "load-" + i;
+            String serverHost = host;
+            new Thread(null, () -> {
+                long[] own = play(serverHost, port, protocol, name, boardSize, gamesPerPlayer);
+                synchronized (latencies) {
+                    latencies.add(own);
+                }
+                done.countDown();
+            }, name, PLAYER_STACK_SIZE).start();
+            if (rampUpMs > 0) {
+                Thread.sleep(rampUpMs / players, (int) (rampUpMs * 1000000 / players % 1000000));
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        reporter.interrupt();
+
+        double seconds = elapsed / 1e9;
+        System.out.printf("%d players, %d games each, %s protocol in %.2f s%n",
+                players, gamesPerPlayer, protocol, seconds);
+        System.out.printf("logins/s=%.0f matches/s=%.0f moves/s=%.0f, %d games finished, %d errors, %d failed connections%n",
+                logins.sum() / seconds, matches.sum() / seconds, moves.sum() / seconds,
+                games.sum(), errors.sum(), failures.sum());
+
+        long[] sorted = latencies.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        if (sorted.length > 0) {
+            System.out.printf("move round trip p50=%.2f ms p99=%.2f ms p999=%.2f ms max=%.2f ms (%d moves)%n",
+                    percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    percentile(sorted, 0.999), sorted[sorted.length - 1] / 1e6, sorted.length);
+        }
+        if (embeddedServer != null) {
+            // a flush is one write to a socket, and with TCP_NODELAY about one packet
+            long written = embeddedServer.getMetrics().getMessagesWritten();
+            long flushes = embeddedServer.getMetrics().getSocketFlushes();
+            System.out.printf("server wrote %d messages with %d flushes (%.2f messages per flush, %.2f flushes per move)%n",
+                    written, flushes, written / (double) Math.max(flushes, 1),
+                    flushes / (double) Math.max(moves.sum(), 1));
+        }
+        System.exit(0);
+    }
+
+    // starts a server in this JVM and returns the host to connect to
+    private static String startEmbeddedServer(int port) throws InterruptedException {
+        System.setProperty("server.port", String.valueOf(port));
+        // load games are not worth keeping unless asked for
+        if (System.getProperty("persistence.enabled") == null) {
+            System.setProperty("persistence.enabled", "false");
+        }
+        Server server = new Server();
+        embeddedServer = server;
+        Thread serverThread = new Thread(server::start, "embedded-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        // the listener is bound at the start of start()
+        Thread.sleep(500);
+        return "localhost";
+    }
+
+    // prints the rates of the last second, once a second
+    private static void report(long start) {
+        long lastLogins = 0;
+        long lastMatches = 0;
+        long lastMoves = 0;
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                long nowLogins = logins.sum();
+                long nowMatches = matches.sum();
+                long nowMoves = moves.sum();
+                System.out.printf("%5.0f s: logins/s=%d matches/s=%d moves/s=%d games=%d errors=%d%n",
+                        (System.nanoTime() - start) / 1e9, nowLogins - lastLogins, nowMatches - lastMatches,
+                        nowMoves - lastMoves, games.sum(), errors.sum());
+                lastLogins = nowLogins;
+                lastMatches = nowMatches;
+                lastMoves = nowMoves;
+            }
+        } catch (InterruptedException e) {
+            // the run is over
+        }
+    }
+
+    // plays the given number of games, each on a new connection, and returns the
+    // round trips of the player's own moves
+    private static long[] play(String host, int port, Protocol protocol, String name, int boardSize, int gameCount) {
+        long[] roundTrips = new long[64];
+        int count = 0;
+
+        for (int g = 0; g < gameCount; g++) {
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(Utils.CLIENT_READ_TIMEOUT_MS);
+                MessageChannel channel = MessageChannel.connect(socket, protocol);
+
+                Utils.Message login = new Utils.Message(Utils.MessageType.LOGIN);
+                login.set(Utils.Field.PLAYER_NAME, name);
+                login.set(Utils.Field.BOARD_SIZE, boardSize);
+                channel.write(login);
+
+                // the board as this player sees it, X always moves first
+                Game game = null;
+                long gameId = 0;
+                boolean loggedIn = false;
+                long moveSent = 0;
+                boolean over = false;
+
+                while (!over) {
+                    Utils.Message message = channel.read();
+                    switch (message.getType()) {
+                        case WAIT:
+                            if (!loggedIn) {
+                                loggedIn = true;
+                                logins.increment();
+                            }
+                            break;
+                        case GAME_START:
+                            if (!loggedIn) {
+                                loggedIn = true;
+                                logins.increment();
+                            }
+                            boolean myTurn = message.getBoolean(Utils.Field.IS_YOUR_TURN);
+                            // both players get GAME_START, the one that starts counts the match
+                            if (myTurn) {
+                                matches.increment();
+                            }
+                            gameId = message.getLong(Utils.Field.GAME_ID);
+                            game = newGame(boardSize);
+                            if (myTurn) {
+                                moveSent = move(channel, game, gameId);
+                            }
+                            break;
+                        case MOVE_RESULT:
+                            int row = message.getInt(Utils.Field.ROW);
+                            int col = message.getInt(Utils.Field.COL);
+                            game.makeMove(row, col);
+                            if (moveSent != 0) {
+                                if (count == roundTrips.length) {
+                                    roundTrips = Arrays.copyOf(roundTrips, count * 2);
+                                }
+                                roundTrips[count++] = System.nanoTime() - moveSent;
+                                moveSent = 0;
+                                moves.increment();
+                            } else if (!game.isGameOver()) {
+                                moveSent = move(channel, game, gameId);
+                            }
+                            break;
+                        case GAME_OVER:
+                            games.increment();
+                            over = true;
+                            break;
+                        case ERROR:
+                            errors.increment();
+                            break;
+                        case BUSY:
+                            failures.increment();
+                            over = true;
+                            break;
+                        case PING:
+                            channel.write(new Utils.Message(Utils.MessageType.PONG));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                channel.write(new Utils.Message(Utils.MessageType.QUIT));
+            } catch (IOException e) {
+                failures.increment();
+            }
+        }
+        return Arrays.copyOf(roundTrips, count);
+    }
+
+    // a local copy of the game, only used to find legal moves and the end of the game
+    private static Game newGame(int boardSize) {
+        Player x = new Player("X");
+        x.setSymbol('X');
+        Player o = new Player("O");
+        o.setSymbol('O');
+        return new Game(boardSize, x, o);
+    }
+
+    // sends a random legal move and returns when it was sent
+    private static long move(MessageChannel channel, Game game, long gameId) throws IOException {
+        int size = game.getBoardSize();
+        int[] free = new int[size * size];
+        int count = 0;
+        for (int cell = 0; cell < free.length; cell++) {
+            if (game.isValidMove(cell / size, cell % size)) {
+                free[count++] = cell;
+            }
+        }
+        int cell = free[ThreadLocalRandom.current().nextInt(count)];
+
+        Utils.Message move = new Utils.Message(Utils.MessageType.MOVE);
+        move.set(Utils.Field.GAME_ID, gameId);
+        move.set(Utils.Field.ROW, cell / size);
+        move.set(Utils.Field.COL, cell % size);
+        long sent = System.nanoTime();
+        channel.write(move);
+        return sent;
+    }
+
+    // percentile of sorted nanosecond values, in milliseconds
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+}
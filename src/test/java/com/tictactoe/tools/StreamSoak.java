@@ -0,0 +1,146 @@
+package com.tictactoe.tools;
+
+import com.tictactoe.Utils;
+import com.tictactoe.protocol.MessageChannel;
+import com.tictactoe.protocol.Protocol;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// sends many messages over one loopback connection and checks that the heap
+// stays flat, like a connection that stays open for days. the heap is measured
+// after a GC at every tenth of the run; the run fails (exit code 1) if it grew
+// by more than the allowed megabytes after the first tenth. "unbounded" uses
+// plain object streams that never reset, to show the growth the channels avoid.
+// usage: StreamSoak [legacy|binary|unbounded] [messages] [allowed growth MB]
+public class StreamSoak {
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "legacy";
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        long allowedGrowth = (args.length > 2 ? Long.parseLong(args[2]) : 8) * 1024 * 1024;
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket sender = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+             Socket receiver = serverSocket.accept()) {
+
+            Reader reader = new Reader(receiver, mode);
+            Thread readerThread = new Thread(reader, "soak-reader");
+            readerThread.start();
+            Writer writer = createWriter(sender, mode);
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long baseline = -1;
+            long last = 0;
+            int step = Math.max(1, messages / 10);
+            long start = System.nanoTime();
+            for (int i = 1; i <= messages; i++) {
+                Utils.Message message = new Utils.Message(Utils.MessageType.MOVE_RESULT);
+                message.set(Utils.Field.GAME_ID, i);
+                message.set(Utils.Field.ROW, i % 3);
+                message.set(Utils.Field.COL, i / 3 % 3);
+                message.set(Utils.Field.SYMBOL, i % 2 == 0 ? Utils.SYMBOL_X : Utils.SYMBOL_O);
+                message.set(Utils.Field.NEXT_TURN, "player-" + i % 1000);
+                message.set(Utils.Field.NEXT_SYMBOL, i % 2 == 0 ? Utils.SYMBOL_O : Utils.SYMBOL_X);
+                message.set(Utils.Field.MOVE_SEQ, i % 9 + 1);
+                writer.write(message);
+
+                if (i % step == 0) {
+                    // the reader must have caught up, or its queue would be counted
+                    reader.awaitCount(i);
+                    last = usedHeapAfterGc(memory);
+                    if (baseline < 0) {
+                        baseline = last;
+                    }
+                    System.out.printf("%,10d messages: heap %6.1f MB%n", i, last / 1048576.0);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            sender.shutdownOutput();
+            readerThread.join();
+
+            long growth = last - baseline;
+            System.out.printf("%s: %,d messages in %.1f s (%.0f/s), heap grew %.1f MB%n",
+                    mode, messages, seconds, messages / seconds, growth / 1048576.0);
+            if (growth > allowedGrowth) {
+                System.out.println("FAILED: heap grew more than " + allowedGrowth / 1048576 + " MB");
+                System.exit(1);
+            }
+            System.out.println("OK: heap is flat");
+        }
+    }
+
+    private interface Writer {
+        void write(Utils.Message message) throws IOException;
+    }
+
+    private static Writer createWriter(Socket socket, String mode) throws IOException {
+        if (mode.equals("unbounded")) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            return message -> {
+                out.writeObject(message);
+                out.flush();
+            };
+        }
+        MessageChannel channel = MessageChannel.connect(socket, Protocol.valueOf(mode.toUpperCase()));
+        return channel::write;
+    }
+
+    // reads until the sender closes, counting messages
+    private static class Reader implements Runnable {
+        private final Socket socket;
+        private final String mode;
+        private int count;
+
+        private Reader(Socket socket, String mode) {
+            this.socket = socket;
+            this.mode = mode;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mode.equals("unbounded")) {
+                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+                    while (true) {
+                        in.readObject();
+                        counted();
+                    }
+                }
+                MessageChannel channel = MessageChannel.accept(socket);
+                while (true) {
+                    channel.read();
+                    counted();
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                // the sender is done
+            }
+        }
+
+        private synchronized void counted() {
+            count++;
+            if (count % 1000 == 0) {
+                notifyAll();
+            }
+        }
+
+        private synchronized void awaitCount(int expected) throws InterruptedException {
+            while (count < expected) {
+                wait(10);
+            }
+        }
+    }
+
+    private static long usedHeapAfterGc(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}